@@ -0,0 +1,34 @@
+/*
+ * Copyright (c) 2026 LabKey Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+-- Read counts of FASTQ files, keyed by folder, path and a fingerprint of the content, so re-imports needn't rescan them
+CREATE TABLE genotyping.FastqStatistics (
+    RowId SERIAL,
+    Container ENTITYID NOT NULL,
+    Path VARCHAR(4000) NOT NULL,
+    FileSize BIGINT NOT NULL,
+    LastModified BIGINT NOT NULL,
+    ContentHash VARCHAR(64) NOT NULL,
+    ReadCount BIGINT NOT NULL,
+    SampleIndex INTEGER NULL,
+    SampleName VARCHAR(255) NULL,
+    PairNumber INTEGER NULL,
+    Created TIMESTAMP NULL,
+
+    CONSTRAINT PK_FastqStatistics PRIMARY KEY (RowId)
+);
+
+CREATE INDEX IDX_FastqStatistics_Container_ContentHash ON genotyping.FastqStatistics (Container, ContentHash);
@@ -0,0 +1,22 @@
+/*
+ * Copyright (c) 2026 LabKey Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+-- Read and match counts recorded when imports complete, so folder summaries needn't count reads and matches
+ALTER TABLE genotyping.Runs ADD COLUMN ReadCount BIGINT NULL;
+ALTER TABLE genotyping.Analyses ADD COLUMN MatchCount BIGINT NULL;
+
+-- Counting, sharding and purging an analysis's matches all select them by Analysis
+CREATE INDEX IX_Matches_Analysis ON genotyping.Matches (Analysis, SampleId);
@@ -0,0 +1,32 @@
+/*
+ * Copyright (c) 2026 LabKey Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+-- Per-sample read statistics of each run, maintained during read import; see SampleReadStatistics
+CREATE TABLE genotyping.SampleReadStatistics (
+    RowId SERIAL,
+    Run INTEGER NOT NULL,
+    SampleId INTEGER NULL,
+    ReadCount BIGINT NOT NULL,
+    TotalBases BIGINT NULL,
+    MinLength INTEGER NULL,
+    MaxLength INTEGER NULL,
+    QualitySum BIGINT NULL,
+
+    CONSTRAINT PK_SampleReadStatistics PRIMARY KEY (RowId),
+    CONSTRAINT FK_SampleReadStatistics_Runs FOREIGN KEY (Run) REFERENCES genotyping.Runs (RowId)
+);
+
+CREATE INDEX IDX_SampleReadStatistics_Run ON genotyping.SampleReadStatistics (Run, SampleId);
@@ -0,0 +1,20 @@
+/*
+ * Copyright (c) 2026 LabKey Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+-- Reads may be stored packed (2-bit sequence, run-length encoded quality) instead of as text; see ReadsCodec
+ALTER TABLE genotyping.Reads ALTER COLUMN Sequence VARCHAR(8000) NULL;
+ALTER TABLE genotyping.Reads ALTER COLUMN Quality VARCHAR(8000) NULL;
+ALTER TABLE genotyping.Reads ADD PackedSequence VARBINARY(MAX) NULL, PackedQuality VARBINARY(MAX) NULL;
@@ -0,0 +1,300 @@
+/*
+ * Copyright (c) 2026 LabKey Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.labkey.genotyping;
+
+import org.jetbrains.annotations.Nullable;
+import org.junit.Assert;
+import org.junit.Test;
+import org.labkey.api.pipeline.PipelineJobException;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Cheap structural pass over a decompressed FASTQ stream. Counts records by scanning line breaks, checks the
+ * four-line record layout (header, sequence, "+", quality of matching length), and hands a sample of the record
+ * headers to a consumer: the first and last N records plus a random stride through the middle. No FastqRecords or
+ * per-line Strings are created.
+ */
+class FastqHeaderSampler
+{
+    interface HeaderConsumer
+    {
+        /**
+         * @param buffer header bytes, without the leading '@'; only valid for the duration of the call
+         * @return false if the header is inconsistent with those seen earlier, which stops the scan
+         */
+        boolean accept(byte[] buffer, int offset, int length) throws PipelineJobException;
+    }
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final int _sampleSize;
+    private final Random _random;
+
+    // Headers of the most recent records, so the last N can be checked once the end of the stream is known
+    private final byte[][] _tail;
+    private final int[] _tailLengths;
+
+    private long _lines = 0;
+    private long _records = 0;
+    private long _sampled = 0;
+    private long _nextSample;
+    private int _lineLength = 0;
+    private byte _lastByte = 0;
+    private int _sequenceLength = 0;
+    private @Nullable String _problem = null;
+
+    FastqHeaderSampler(int sampleSize)
+    {
+        this(sampleSize, new Random());
+    }
+
+    FastqHeaderSampler(int sampleSize, Random random)
+    {
+        _sampleSize = Math.max(1, sampleSize);
+        _random = random;
+        _tail = new byte[_sampleSize][];
+        _tailLengths = new int[_sampleSize];
+        _nextSample = _sampleSize + nextStride();
+    }
+
+    // Averages one sampled record per _sampleSize records
+    private int nextStride()
+    {
+        return 1 + _random.nextInt(2 * _sampleSize);
+    }
+
+    /**
+     * @return true if the stream is a well-formed FASTQ and the consumer accepted every sampled header. If false,
+     * getProblem() describes the first inconsistency found.
+     */
+    boolean scan(InputStream in, HeaderConsumer consumer) throws IOException, PipelineJobException
+    {
+        byte[] buffer = new byte[BUFFER_SIZE];
+        int read;
+
+        while ((read = in.read(buffer, 0, buffer.length)) >= 0)
+        {
+            int pos = 0;
+
+            while (pos < read)
+            {
+                int end = pos;
+                while (end < read && buffer[end] != '\n')
+                    end++;
+
+                if (end > pos && !appendToLine(buffer, pos, end))
+                    return false;
+
+                if (end == read)
+                    break;
+
+                if (!endLine(consumer))
+                    return false;
+
+                pos = end + 1;
+            }
+        }
+
+        // A final line without a trailing newline still counts
+        if (_lineLength > 0 && !endLine(consumer))
+            return false;
+
+        if ((_lines & 3) != 0)
+            return fail("File ends partway through the record starting at line " + ((_lines & ~3L) + 1));
+
+        // Records before _sampleSize were checked as they went by
+        for (long record = Math.max(_sampleSize, _records - _sampleSize); record < _records; record++)
+        {
+            int slot = (int)(record % _sampleSize);
+            if (!acceptHeader(consumer, slot, record))
+                return false;
+        }
+
+        return true;
+    }
+
+    private boolean appendToLine(byte[] buffer, int start, int end)
+    {
+        int kind = (int)(_lines & 3);
+
+        if (_lineLength == 0)
+        {
+            if (kind == 0 && buffer[start] != '@')
+                return fail("Expected a record header starting with '@' at line " + (_lines + 1));
+            if (kind == 2 && buffer[start] != '+')
+                return fail("Expected a '+' separator at line " + (_lines + 1));
+        }
+
+        if (kind == 0)
+        {
+            int slot = (int)((_lines >> 2) % _sampleSize);
+            int length = _lineLength == 0 ? 0 : _tailLengths[slot];
+            int needed = length + end - start;
+            byte[] header = _tail[slot];
+
+            if (null == header || header.length < needed)
+            {
+                header = null == header ? new byte[Math.max(256, needed)] : Arrays.copyOf(header, Math.max(2 * header.length, needed));
+                _tail[slot] = header;
+            }
+
+            System.arraycopy(buffer, start, header, length, end - start);
+            _tailLengths[slot] = needed;
+        }
+
+        _lineLength += end - start;
+        _lastByte = buffer[end - 1];
+
+        return true;
+    }
+
+    private boolean endLine(HeaderConsumer consumer) throws PipelineJobException
+    {
+        int kind = (int)(_lines & 3);
+        int length = _lineLength > 0 && _lastByte == '\r' ? _lineLength - 1 : _lineLength;
+
+        switch (kind)
+        {
+            case 0:
+                if (length <= 1)
+                    return fail("Missing record header at line " + (_lines + 1));
+
+                long record = _lines >> 2;
+                int slot = (int)(record % _sampleSize);
+                _tailLengths[slot] = length;
+
+                if (record == _nextSample)
+                    _nextSample += nextStride();
+                else if (record >= _sampleSize)
+                    break;
+
+                if (!acceptHeader(consumer, slot, record))
+                    return false;
+                break;
+            case 1:
+                _sequenceLength = length;
+                break;
+            case 2:
+                if (length == 0)
+                    return fail("Expected a '+' separator at line " + (_lines + 1));
+                break;
+            default:
+                if (length != _sequenceLength)
+                    return fail("Sequence and quality lengths differ in the record ending at line " + (_lines + 1));
+                _records++;
+        }
+
+        _lines++;
+        _lineLength = 0;
+        _lastByte = 0;
+
+        return true;
+    }
+
+    private boolean acceptHeader(HeaderConsumer consumer, int slot, long record) throws PipelineJobException
+    {
+        _sampled++;
+
+        if (!consumer.accept(_tail[slot], 1, _tailLengths[slot] - 1))
+            return fail("Header of record " + (record + 1) + " does not match the sample or pair number of earlier records");
+
+        return true;
+    }
+
+    private boolean fail(String problem)
+    {
+        _problem = problem;
+        return false;
+    }
+
+    long getRecordCount()
+    {
+        return _records;
+    }
+
+    long getSampledCount()
+    {
+        return _sampled;
+    }
+
+    @Nullable String getProblem()
+    {
+        return _problem;
+    }
+
+    public static class TestCase extends Assert
+    {
+        private static final String RECORD = "@M00123:4:000000000-A0F8M:1:1:%d:1463 1:N:0:1\nACGTN\n+\nIIII#\n";
+
+        private static String fastq(int records)
+        {
+            StringBuilder sb = new StringBuilder();
+            for (int i = 0; i < records; i++)
+                sb.append(String.format(RECORD, i));
+            return sb.toString();
+        }
+
+        private static List<String> scan(FastqHeaderSampler sampler, String fastq, boolean expected) throws Exception
+        {
+            List<String> headers = new ArrayList<>();
+            boolean valid = sampler.scan(new ByteArrayInputStream(fastq.getBytes(StandardCharsets.US_ASCII)), (buffer, offset, length) -> {
+                headers.add(new String(buffer, offset, length, StandardCharsets.US_ASCII));
+                return true;
+            });
+            assertEquals(sampler.getProblem(), expected, valid);
+            return headers;
+        }
+
+        @Test
+        public void testCountsAndSamples() throws Exception
+        {
+            FastqHeaderSampler sampler = new FastqHeaderSampler(10, new Random(42));
+            List<String> headers = scan(sampler, fastq(1000), true);
+
+            assertEquals(1000, sampler.getRecordCount());
+            assertEquals("M00123:4:000000000-A0F8M:1:1:0:1463 1:N:0:1", headers.get(0));
+            assertEquals("M00123:4:000000000-A0F8M:1:1:999:1463 1:N:0:1", headers.get(headers.size() - 1));
+            assertTrue(headers.size() >= 20 && headers.size() < 1000);
+        }
+
+        @Test
+        public void testLineEndings() throws Exception
+        {
+            FastqHeaderSampler sampler = new FastqHeaderSampler(10);
+            String crlf = fastq(3).replace("\n", "\r\n");
+            List<String> headers = scan(sampler, crlf.substring(0, crlf.length() - 2), true);
+
+            assertEquals(3, sampler.getRecordCount());
+            assertEquals("M00123:4:000000000-A0F8M:1:1:2:1463 1:N:0:1", headers.get(headers.size() - 1));
+        }
+
+        @Test
+        public void testMalformed() throws Exception
+        {
+            scan(new FastqHeaderSampler(10), fastq(3) + "@truncated\nACGT\n", false);
+            scan(new FastqHeaderSampler(10), fastq(3).replace("IIII#", "III"), false);
+            scan(new FastqHeaderSampler(10), "ACGT\n" + fastq(3), false);
+        }
+    }
+}
@@ -0,0 +1,371 @@
+/*
+ * Copyright (c) 2026 LabKey Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.labkey.genotyping;
+
+import htsjdk.samtools.fastq.FastqReader;
+import org.apache.logging.log4j.Logger;
+import org.jetbrains.annotations.Nullable;
+import org.labkey.api.util.FileUtil;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Opens a FASTQ (or gzipped FASTQ) file for parsing. Historically every file was copied to a local temp file before
+ * parsing (issue 48029), which doubles disk I/O and temp space for large runs. The copy is now governed by a
+ * ReadStrategy: read in place through large sequential NIO reads with a background read-ahead buffer, always copy,
+ * or let a short throughput probe decide.
+ * <p>
+ * Compressed files are sniffed rather than trusted by extension. BGZF files (blocked gzip, as written by bgzip and
+ * many sequencers) are inflated many blocks at a time on a shared thread pool, ahead of the parser (see
+ * ParallelBgzfInputStream); other gzip files, including concatenated multi-member gzip, fall back to a single
+ * inflating stream since their member boundaries can't be found without inflating.
+ */
+public class FastqInput implements Closeable
+{
+    public enum ReadStrategy
+    {
+        /** Copy the file to a local temp file and parse the copy (the pre-existing behavior) */
+        TempCopy,
+        /** Parse the file in place */
+        Direct,
+        /** Probe the source and copy only if it reads slower than the configured threshold */
+        Auto;
+
+        public static ReadStrategy fromString(@Nullable String value)
+        {
+            for (ReadStrategy strategy : values())
+                if (strategy.name().equalsIgnoreCase(value == null ? null : value.trim()))
+                    return strategy;
+
+            return Auto;
+        }
+    }
+
+    public static final int DEFAULT_MIN_THROUGHPUT = 50;   // MB/sec
+    // Read-ahead holds a handful of these per open file, and several files may be parsed concurrently
+    public static final int DEFAULT_BUFFER_SIZE = 1024 * 1024;
+
+    private static final int PROBE_BYTES = 16 * 1024 * 1024;
+    private static final int READ_AHEAD_CHUNKS = 4;
+
+    private final File _source;
+    private final File _file;
+    private final @Nullable File _tempFile;
+    private final int _bufferSize;
+    private final Logger _logger;
+
+    public FastqInput(File source, ReadStrategy strategy, int minThroughput, int bufferSize, Logger logger) throws IOException
+    {
+        _source = source;
+        _bufferSize = bufferSize > 0 ? bufferSize : DEFAULT_BUFFER_SIZE;
+        _logger = logger;
+
+        if (shouldCopy(strategy, minThroughput))
+        {
+            _tempFile = FileUtil.createTempFile(FileUtil.getBaseName(source) + ".", "." + FileUtil.getExtension(source));
+            _tempFile.deleteOnExit();
+            _logger.debug("Copying to temp file " + _tempFile + ", size is " + source.length() + " bytes");
+            FileUtil.copyFile(source, _tempFile);
+            _file = _tempFile;
+        }
+        else
+        {
+            _tempFile = null;
+            _file = source;
+        }
+    }
+
+    private boolean shouldCopy(ReadStrategy strategy, int minThroughput) throws IOException
+    {
+        switch (strategy)
+        {
+            case TempCopy:
+                return true;
+            case Direct:
+                return false;
+            default:
+                double throughput = probeThroughput(_source);
+                boolean copy = throughput < minThroughput;
+                _logger.debug("Read probe of " + _source.getName() + ": " + (Double.isInfinite(throughput) ? "too small to measure" : Math.round(throughput) + " MB/sec") +
+                        (copy ? ", below " + minThroughput + " MB/sec so copying to a temp file" : ", reading in place"));
+                return copy;
+        }
+    }
+
+    // Times a sequential read of the start of the file. Small files are never worth copying.
+    private static double probeThroughput(File file) throws IOException
+    {
+        if (file.length() < PROBE_BYTES)
+            return Double.POSITIVE_INFINITY;
+
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ))
+        {
+            ByteBuffer buffer = ByteBuffer.allocateDirect(1024 * 1024);
+            long total = 0;
+            long start = System.nanoTime();
+
+            while (total < PROBE_BYTES)
+            {
+                buffer.clear();
+                int read = channel.read(buffer);
+
+                if (read < 0)
+                    break;
+
+                total += read;
+            }
+
+            long elapsed = System.nanoTime() - start;
+
+            return elapsed <= 0 ? Double.POSITIVE_INFINITY : (total / (1024.0 * 1024.0)) / (elapsed / 1e9);
+        }
+    }
+
+    /** The original file, regardless of whether it's being read from a temp copy */
+    public File getSource()
+    {
+        return _source;
+    }
+
+    public boolean isCopied()
+    {
+        return null != _tempFile;
+    }
+
+    /** Stream of the file's raw bytes, read sequentially in large chunks on a background thread */
+    public InputStream openRawStream() throws IOException
+    {
+        FileChannel channel = FileChannel.open(_file.toPath(), StandardOpenOption.READ);
+        return new ReadAheadInputStream(Channels.newInputStream(channel), _bufferSize, _file.getName());
+    }
+
+    /** Stream of the file's FASTQ text, decompressed if the file is gzipped */
+    public InputStream openStream() throws IOException
+    {
+        BufferedInputStream raw = new BufferedInputStream(openRawStream(), 64 * 1024);
+
+        if (ParallelBgzfInputStream.isBgzf(raw))
+            return new ParallelBgzfInputStream(raw);
+
+        if (isGzip(raw))
+            return new GZIPInputStream(raw, 64 * 1024);
+
+        return raw;
+    }
+
+    public FastqReader createReader() throws IOException
+    {
+        BufferedReader reader = new BufferedReader(new InputStreamReader(openStream(), StandardCharsets.US_ASCII), 64 * 1024);
+        return new FastqReader(_source, reader);
+    }
+
+    // Sniff the gzip magic number rather than trusting the file extension
+    static boolean isGzip(BufferedInputStream in) throws IOException
+    {
+        in.mark(2);
+        int b1 = in.read();
+        int b2 = in.read();
+        in.reset();
+
+        return b1 == 0x1f && b2 == 0x8b;
+    }
+
+    @Override
+    public void close()
+    {
+        if (null != _tempFile)
+            _tempFile.delete();
+    }
+
+    /**
+     * Reads the underlying stream in large chunks on a background thread, keeping a few chunks queued ahead of the
+     * consumer. On slow network mounts this overlaps I/O latency with parsing and decompression.
+     */
+    private static class ReadAheadInputStream extends InputStream
+    {
+        private static final Chunk END = new Chunk(new byte[0]);
+
+        private final InputStream _in;
+        private final BlockingQueue<Chunk> _full = new ArrayBlockingQueue<>(READ_AHEAD_CHUNKS);
+        private final BlockingQueue<Chunk> _empty = new ArrayBlockingQueue<>(READ_AHEAD_CHUNKS + 1);
+        private final Thread _thread;
+
+        private volatile IOException _error = null;
+        private volatile boolean _closed = false;
+        private Chunk _current = null;
+        private int _position = 0;
+        private boolean _done = false;
+
+        private ReadAheadInputStream(InputStream in, int chunkSize, String name)
+        {
+            _in = in;
+
+            for (int i = 0; i <= READ_AHEAD_CHUNKS; i++)
+                _empty.add(new Chunk(new byte[chunkSize]));
+
+            _thread = new Thread(this::fill, "FASTQ read-ahead: " + name);
+            _thread.setDaemon(true);
+            _thread.start();
+        }
+
+        private void fill()
+        {
+            try
+            {
+                while (!_closed)
+                {
+                    Chunk chunk = _empty.take();
+                    chunk.length = 0;
+
+                    // Fill the whole chunk so the consumer sees large, uniform reads
+                    while (chunk.length < chunk.bytes.length)
+                    {
+                        int read = _in.read(chunk.bytes, chunk.length, chunk.bytes.length - chunk.length);
+
+                        if (read < 0)
+                            break;
+
+                        chunk.length += read;
+                    }
+
+                    if (chunk.length > 0)
+                        _full.put(chunk);
+
+                    if (chunk.length < chunk.bytes.length)
+                        break;
+                }
+            }
+            catch (IOException e)
+            {
+                _error = e;
+            }
+            catch (InterruptedException e)
+            {
+                // close() was called
+                return;
+            }
+
+            try
+            {
+                _full.put(END);
+            }
+            catch (InterruptedException ignored)
+            {
+            }
+        }
+
+        private boolean ensureChunk() throws IOException
+        {
+            if (_done)
+                return false;
+
+            if (null != _current && _position < _current.length)
+                return true;
+
+            if (null != _current)
+                _empty.offer(_current);
+
+            try
+            {
+                _current = _full.take();
+            }
+            catch (InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while reading", e);
+            }
+
+            _position = 0;
+
+            if (END == _current)
+            {
+                _current = null;
+                _done = true;
+
+                if (null != _error)
+                    throw _error;
+
+                return false;
+            }
+
+            return true;
+        }
+
+        @Override
+        public int read() throws IOException
+        {
+            if (!ensureChunk())
+                return -1;
+
+            return _current.bytes[_position++] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException
+        {
+            if (len == 0)
+                return 0;
+
+            if (!ensureChunk())
+                return -1;
+
+            int count = Math.min(len, _current.length - _position);
+            System.arraycopy(_current.bytes, _position, b, off, count);
+            _position += count;
+
+            return count;
+        }
+
+        @Override
+        public int available()
+        {
+            return null == _current ? 0 : _current.length - _position;
+        }
+
+        @Override
+        public void close() throws IOException
+        {
+            _closed = true;
+            _thread.interrupt();
+            _in.close();
+        }
+
+        private static class Chunk
+        {
+            private final byte[] bytes;
+            private int length;
+
+            private Chunk(byte[] bytes)
+            {
+                this.bytes = bytes;
+            }
+        }
+    }
+}
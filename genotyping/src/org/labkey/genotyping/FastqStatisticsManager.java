@@ -0,0 +1,294 @@
+/*
+ * Copyright (c) 2026 LabKey Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.labkey.genotyping;
+
+import org.jetbrains.annotations.Nullable;
+import org.labkey.api.collections.CaseInsensitiveHashMap;
+import org.labkey.api.data.Container;
+import org.labkey.api.data.DbScope;
+import org.labkey.api.data.SQLFragment;
+import org.labkey.api.data.SimpleFilter;
+import org.labkey.api.data.Sort;
+import org.labkey.api.data.SqlExecutor;
+import org.labkey.api.data.Table;
+import org.labkey.api.data.TableInfo;
+import org.labkey.api.data.TableSelector;
+import org.labkey.api.query.FieldKey;
+import org.labkey.api.security.User;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Persistent cache of FASTQ read counts (plus, for Illumina files, the sample and pair number found in the read
+ * headers), so importing the same files again doesn't rescan them. Entries belong to the folder that imported the
+ * files and are keyed on the file's path and a fingerprint of its content: size, last modified time, and a hash of
+ * the first and last megabyte. They're deleted with the folder, and prune() drops entries whose files are gone.
+ */
+public class FastqStatisticsManager
+{
+    private static final FastqStatisticsManager _instance = new FastqStatisticsManager();
+
+    private static final int HASH_BYTES = 1024 * 1024;
+    private static final int PRUNE_CHUNK_SIZE = 1000;
+
+    private FastqStatisticsManager()
+    {
+        // prevent external construction with a private default constructor
+    }
+
+    public static FastqStatisticsManager get()
+    {
+        return _instance;
+    }
+
+    public @Nullable FastqStatistics getStatistics(Container c, Fingerprint fingerprint)
+    {
+        TableInfo table = GenotypingSchema.get().getFastqStatisticsTable();
+        SimpleFilter filter = SimpleFilter.createContainerFilter(c);
+        filter.addCondition(FieldKey.fromParts("ContentHash"), fingerprint.getHash());
+        filter.addCondition(FieldKey.fromParts("FileSize"), fingerprint.getSize());
+        filter.addCondition(FieldKey.fromParts("LastModified"), fingerprint.getLastModified());
+        filter.addCondition(FieldKey.fromParts("Path"), fingerprint.getPath());
+
+        List<FastqStatistics> statistics = new TableSelector(table, table.getColumns("ReadCount, SampleIndex, SampleName, PairNumber"), filter, new Sort("-RowId"))
+                .setMaxRows(1)
+                .getArrayList(FastqStatistics.class);
+
+        return statistics.isEmpty() ? null : statistics.get(0);
+    }
+
+    /** Replaces any statistics the folder previously recorded for the fingerprint's path */
+    public void saveStatistics(Container c, User user, Fingerprint fingerprint, FastqStatistics statistics)
+    {
+        GenotypingSchema gs = GenotypingSchema.get();
+        TableInfo table = gs.getFastqStatisticsTable();
+
+        Map<String, Object> row = new CaseInsensitiveHashMap<>();
+        row.put("Container", c);
+        row.put("Path", fingerprint.getPath());
+        row.put("FileSize", fingerprint.getSize());
+        row.put("LastModified", fingerprint.getLastModified());
+        row.put("ContentHash", fingerprint.getHash());
+        row.put("ReadCount", statistics.getReadCount());
+        row.put("SampleIndex", statistics.getSampleIndex());
+        row.put("SampleName", statistics.getSampleName());
+        row.put("PairNumber", statistics.getPairNumber());
+        row.put("Created", new Date());
+
+        try (DbScope.Transaction transaction = gs.getSchema().getScope().ensureTransaction())
+        {
+            new SqlExecutor(gs.getSchema()).execute("DELETE FROM " + table + " WHERE Container = ? AND Path = ?", c, fingerprint.getPath());
+            Table.insert(user, table, row);
+            transaction.commit();
+        }
+    }
+
+    /** Deletes the folder's statistics whose file no longer exists or has changed since it was recorded; returns the number deleted */
+    public int prune(Container c)
+    {
+        GenotypingSchema gs = GenotypingSchema.get();
+        TableInfo table = gs.getFastqStatisticsTable();
+        List<Integer> stale = new ArrayList<>();
+
+        new TableSelector(table, table.getColumns("RowId, Path, FileSize, LastModified"), SimpleFilter.createContainerFilter(c), null).forEach(rs -> {
+            File file = new File(rs.getString("Path"));
+
+            if (!file.isFile() || file.length() != rs.getLong("FileSize") || file.lastModified() != rs.getLong("LastModified"))
+                stale.add(rs.getInt("RowId"));
+        });
+
+        SqlExecutor executor = new SqlExecutor(gs.getSchema());
+
+        // One statement per chunk, keeping each IN list well under the dialects' parameter limits
+        for (int i = 0; i < stale.size(); i += PRUNE_CHUNK_SIZE)
+        {
+            SQLFragment sql = new SQLFragment("DELETE FROM " + table + " WHERE Container = ? AND RowId IN (", c);
+            String separator = "";
+
+            for (Integer rowId : stale.subList(i, Math.min(i + PRUNE_CHUNK_SIZE, stale.size())))
+            {
+                sql.append(separator).append("?").add(rowId);
+                separator = ", ";
+            }
+
+            sql.append(")");
+            executor.execute(sql);
+        }
+
+        return stale.size();
+    }
+
+    public void delete(Container c)
+    {
+        GenotypingSchema gs = GenotypingSchema.get();
+        new SqlExecutor(gs.getSchema()).execute("DELETE FROM " + gs.getFastqStatisticsTable() + " WHERE Container = ?", c);
+    }
+
+    /** Identifies a file's content cheaply, without reading all of it */
+    public static class Fingerprint
+    {
+        private final String _path;
+        private final long _size;
+        private final long _lastModified;
+        private final String _hash;
+
+        private Fingerprint(File file, String hash)
+        {
+            _path = file.toPath().toAbsolutePath().normalize().toString();
+            _size = file.length();
+            _lastModified = file.lastModified();
+            _hash = hash;
+        }
+
+        public static Fingerprint of(File file) throws IOException
+        {
+            MessageDigest digest;
+
+            try
+            {
+                digest = MessageDigest.getInstance("SHA-256");
+            }
+            catch (NoSuchAlgorithmException e)
+            {
+                throw new IllegalStateException(e);
+            }
+
+            try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ))
+            {
+                long size = channel.size();
+                ByteBuffer buffer = ByteBuffer.allocate(HASH_BYTES);
+
+                update(digest, channel, 0, buffer);
+                if (size > HASH_BYTES)
+                    update(digest, channel, Math.max(HASH_BYTES, size - HASH_BYTES), buffer);
+            }
+
+            return new Fingerprint(file, HexFormat.of().formatHex(digest.digest()));
+        }
+
+        private static void update(MessageDigest digest, FileChannel channel, long position, ByteBuffer buffer) throws IOException
+        {
+            buffer.clear();
+
+            while (buffer.hasRemaining())
+            {
+                int read = channel.read(buffer, position + buffer.position());
+                if (read < 0)
+                    break;
+            }
+
+            buffer.flip();
+            digest.update(buffer);
+        }
+
+        /** Same content at a new location, e.g. after the file has been renamed */
+        public Fingerprint forFile(File file)
+        {
+            return new Fingerprint(file, _hash);
+        }
+
+        public String getPath()
+        {
+            return _path;
+        }
+
+        public long getSize()
+        {
+            return _size;
+        }
+
+        public long getLastModified()
+        {
+            return _lastModified;
+        }
+
+        public String getHash()
+        {
+            return _hash;
+        }
+    }
+
+    public static class FastqStatistics
+    {
+        private long _readCount;
+        private Integer _sampleIndex;
+        private String _sampleName;
+        private Integer _pairNumber;
+
+        public FastqStatistics()
+        {
+        }
+
+        public FastqStatistics(long readCount, @Nullable Integer sampleIndex, @Nullable String sampleName, @Nullable Integer pairNumber)
+        {
+            _readCount = readCount;
+            _sampleIndex = sampleIndex;
+            _sampleName = sampleName;
+            _pairNumber = pairNumber;
+        }
+
+        public long getReadCount()
+        {
+            return _readCount;
+        }
+
+        public void setReadCount(long readCount)
+        {
+            _readCount = readCount;
+        }
+
+        public @Nullable Integer getSampleIndex()
+        {
+            return _sampleIndex;
+        }
+
+        public void setSampleIndex(Integer sampleIndex)
+        {
+            _sampleIndex = sampleIndex;
+        }
+
+        public @Nullable String getSampleName()
+        {
+            return _sampleName;
+        }
+
+        public void setSampleName(String sampleName)
+        {
+            _sampleName = sampleName;
+        }
+
+        public @Nullable Integer getPairNumber()
+        {
+            return _pairNumber;
+        }
+
+        public void setPairNumber(Integer pairNumber)
+        {
+            _pairNumber = pairNumber;
+        }
+    }
+}
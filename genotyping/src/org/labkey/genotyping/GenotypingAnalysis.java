@@ -53,7 +53,7 @@ public GenotypingAnalysis(Container c, User user, GenotypingRun run, @Nullable S
         setContainer(c);
         setRun(run.getRowId());
         setDescription(description);
-        setSequenceDictionary(SequenceManager.get().getCurrentDictionary(c, user).getRowId());
+        setSequenceDictionary(SequenceManager.get().getCurrentDictionaryId(c, user));
         setSequencesView(sequencesView);
     }
 
@@ -19,12 +19,15 @@
 import org.labkey.api.data.Container;
 import org.labkey.api.data.ContainerManager;
 import org.labkey.api.security.User;
+import org.labkey.genotyping.sequences.SequenceManager;
 
 public class GenotypingContainerListener extends ContainerManager.AbstractContainerListener
 {
     @Override
     public void containerDeleted(Container c, User user)
     {
+        SequenceManager.get().clearCaches(c);
         GenotypingManager.get().delete(c);
+        FastqStatisticsManager.get().delete(c);
     }
 }
\ No newline at end of file
@@ -44,6 +44,7 @@
 import org.labkey.api.data.ActionButton;
 import org.labkey.api.data.ButtonBar;
 import org.labkey.api.data.ColumnInfo;
+import org.labkey.api.data.CompareType;
 import org.labkey.api.data.Container;
 import org.labkey.api.data.DataRegion;
 import org.labkey.api.data.DataRegionSelection;
@@ -85,7 +86,6 @@
 import org.labkey.api.security.permissions.InsertPermission;
 import org.labkey.api.security.permissions.ReadPermission;
 import org.labkey.api.security.permissions.UpdatePermission;
-import org.labkey.api.util.DateUtil;
 import org.labkey.api.util.MinorConfigurationException;
 import org.labkey.api.util.PageFlowUtil;
 import org.labkey.api.util.Pair;
@@ -109,6 +109,7 @@
 import org.labkey.genotyping.galaxy.GalaxyUserSettings;
 import org.labkey.genotyping.sequences.FastqGenerator;
 import org.labkey.genotyping.sequences.FastqWriter;
+import org.labkey.genotyping.sequences.ReadsCodec;
 import org.labkey.genotyping.sequences.SequenceManager;
 import org.springframework.validation.BindException;
 import org.springframework.validation.Errors;
@@ -124,11 +125,11 @@
 import java.net.URL;
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.Date;
 import java.util.HashSet;
-import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Properties;
@@ -339,7 +340,7 @@ public void validateCommand(MatchesForm target, Errors errors)
         public boolean handlePost(MatchesForm form, BindException errors)
         {
             List<String> ids = getViewContext().getList(DataRegion.SELECT_CHECKBOX_NAME);
-            List<Integer> matchIds = new LinkedList<>();
+            List<Integer> matchIds = new ArrayList<>(ids.size());
 
             for (String id : ids)
                 matchIds.add(Integer.parseInt(id));
@@ -357,11 +358,29 @@ public boolean handlePost(MatchesForm form, BindException errors)
     }
 
 
+    public static class LoadSequencesForm extends ReturnUrlForm
+    {
+        private boolean _dryRun = false;
+
+        public boolean isDryRun()
+        {
+            return _dryRun;
+        }
+
+        public void setDryRun(boolean dryRun)
+        {
+            _dryRun = dryRun;
+        }
+    }
+
+
     @RequiresPermission(AdminPermission.class)
-    public class LoadSequencesAction extends FormHandlerAction<ReturnUrlForm>
+    public class LoadSequencesAction extends FormHandlerAction<LoadSequencesForm>
     {
+        private SequenceManager.LoadResult _result = null;
+
         @Override
-        public void validateCommand(ReturnUrlForm target, Errors errors)
+        public void validateCommand(LoadSequencesForm target, Errors errors)
         {
             //Issue 15583: if sequences table has not been set properly, reject the import
             ValidatingGenotypingFolderSettings settings = new ValidatingGenotypingFolderSettings(getContainer(), getUser(), "loading sequences");
@@ -372,19 +391,23 @@ public void validateCommand(ReturnUrlForm target, Errors errors)
         }
 
         @Override
-        public boolean handlePost(ReturnUrlForm returnUrlForm, BindException errors)
+        public boolean handlePost(LoadSequencesForm form, BindException errors)
         {
-            long startTime = System.currentTimeMillis();
-            SequenceManager.get().loadSequences(getContainer(), getUser());
-            LOG.info(DateUtil.formatDuration(System.currentTimeMillis() - startTime) + " to load sequences");
+            _result = SequenceManager.get().loadSequences(getContainer(), getUser(), form.isDryRun());
+            LOG.info(_result.toString());
 
             return true;
         }
 
         @Override
-        public URLHelper getSuccessURL(ReturnUrlForm form)
+        public URLHelper getSuccessURL(LoadSequencesForm form)
         {
             ActionURL begin = PageFlowUtil.urlProvider(ProjectUrls.class).getBeginURL(getContainer());
+
+            // Show the dry run report on the admin page
+            if (null != _result && _result.isDryRun())
+                return getAdminURL(_result.toString(), form.getReturnActionURL(begin));
+
             return form.getReturnURLHelper(begin);
         }
     }
@@ -1178,6 +1201,13 @@ private ColumnInfo getColumnInfo(Map<FieldKey, ColumnInfo> fieldMap, String colu
         public boolean handlePost(AnalyzeForm form, BindException errors) throws Exception
         {
             GenotypingRun run = GenotypingManager.get().getRun(getContainer(), form.getRun());
+
+            if (Status.PartiallyImported == run.getStatusEnum())
+            {
+                errors.reject(ERROR_MSG, "Run " + run.getRowId() + " was only partially imported; retry the import of its reads before analyzing it");
+                return false;
+            }
+
             File readsPath = new File(run.getPath(), run.getFileName());
             ViewBackgroundInfo vbi = new ViewBackgroundInfo(getContainer(), getUser(), getViewContext().getActionURL());
             PipeRoot root = PipelineService.get().findPipelineRoot(getContainer());
@@ -1439,6 +1469,9 @@ private void importAnalysis(int analysisId, File pipelineDir, User user) throws
                 case Complete:
                     message += "previously imported";
                     break;
+                case Deleting:
+                    message += "deleted";
+                    break;
             }
 
             throw new MinorConfigurationException(message);
@@ -1490,7 +1523,7 @@ protected QueryView createQueryView(SequencesForm form, BindException errors, bo
             settings.setAllowChooseView(true);
             settings.getBaseSort().insertSortColumn("RowId");
             Integer dictionary = form.getDictionary();
-            settings.getBaseFilter().addCondition(FieldKey.fromParts("Dictionary"), null != dictionary ? dictionary : SequenceManager.get().getCurrentDictionary(getContainer(), getUser()).getRowId());
+            settings.getBaseFilter().addCondition(FieldKey.fromParts("Dictionary"), null != dictionary ? dictionary : SequenceManager.get().getCurrentDictionaryId(getContainer(), getUser()));
 
             QueryView qv = new QueryView(new GenotypingQuerySchema(getUser(), getContainer()), settings, errors);
             qv.setShadeAlternatingRows(true);
@@ -1547,7 +1580,7 @@ public ModelAndView getView(SequenceForm form, BindException errors)
 
             // Adding the dictionary ensures we're grabbing a sequence from this container
             Integer dictionary = form.getDictionary();
-            settings.getBaseFilter().addCondition(FieldKey.fromParts("Dictionary"), null != dictionary ? dictionary : SequenceManager.get().getCurrentDictionary(getContainer(), getUser()).getRowId());
+            settings.getBaseFilter().addCondition(FieldKey.fromParts("Dictionary"), null != dictionary ? dictionary : SequenceManager.get().getCurrentDictionaryId(getContainer(), getUser()));
             QueryView qv = new QueryView(new GenotypingQuerySchema(getUser(), getContainer()), settings, errors);
 
             DataRegion rgn = new DataRegion();
@@ -1637,6 +1670,7 @@ public static class RunForm extends QueryExportForm
     {
         private int _run = 0;
         private boolean _filterLowQualityBases = false;
+        private Integer _seek = null;
 
         public enum Platforms{
 
@@ -1689,6 +1723,55 @@ public void setFilterLowQualityBases(boolean filterLowQualityBases)
         {
             _filterLowQualityBases = filterLowQualityBases;
         }
+
+        // First RowId of the requested page when paging reads by key
+        public Integer getSeek()
+        {
+            return _seek;
+        }
+
+        @SuppressWarnings({"UnusedDeclaration"})
+        public void setSeek(Integer seek)
+        {
+            _seek = seek;
+        }
+    }
+
+
+    public static class ReadsPagerBean
+    {
+        private final @Nullable Long _estimatedCount;
+        private final @Nullable ActionURL _firstURL;
+        private final @Nullable ActionURL _previousURL;
+        private final @Nullable ActionURL _nextURL;
+
+        public ReadsPagerBean(@Nullable Long estimatedCount, @Nullable ActionURL firstURL, @Nullable ActionURL previousURL, @Nullable ActionURL nextURL)
+        {
+            _estimatedCount = estimatedCount;
+            _firstURL = firstURL;
+            _previousURL = previousURL;
+            _nextURL = nextURL;
+        }
+
+        public @Nullable Long getEstimatedCount()
+        {
+            return _estimatedCount;
+        }
+
+        public @Nullable ActionURL getFirstURL()
+        {
+            return _firstURL;
+        }
+
+        public @Nullable ActionURL getPreviousURL()
+        {
+            return _previousURL;
+        }
+
+        public @Nullable ActionURL getNextURL()
+        {
+            return _nextURL;
+        }
     }
 
 
@@ -1706,6 +1789,9 @@ public static ActionURL getRunURL(Container c, GenotypingRun run)
     {
         private static final String DATA_REGION_NAME = "Reads";
 
+        // Set when the grid is paged by key rather than by offset; see createQueryView()
+        private ReadsPagerBean _pager = null;
+
         private ReadsAction(Class<? extends FORM> formClass)
         {
             super(formClass);
@@ -1731,6 +1817,8 @@ public ModelAndView getView(FORM form, BindException errors) throws Exception
 
                 try (Results results = rgn.getResults(rc))
                 {
+                    // Reads imported with packed storage have null Sequence and Quality
+                    final boolean hasPacked = results.hasColumn(FieldKey.fromParts("PackedSequence")) && results.hasColumn(FieldKey.fromParts("PackedQuality"));
                     FastqGenerator fg = new FastqGenerator(results)
                     {
                         @Override
@@ -1742,13 +1830,15 @@ public String getHeader(ResultSet rs) throws SQLException
                         @Override
                         public String getSequence(ResultSet rs) throws SQLException
                         {
-                            return rs.getString("Sequence");
+                            String sequence = rs.getString("Sequence");
+                            return null == sequence && hasPacked ? ReadsCodec.decodeSequence(rs.getBytes("PackedSequence")) : sequence;
                         }
 
                         @Override
                         public String getQuality(ResultSet rs) throws SQLException
                         {
-                            return rs.getString("Quality");
+                            String quality = rs.getString("Quality");
+                            return null == quality && hasPacked ? ReadsCodec.decodeQuality(rs.getBytes("PackedQuality")) : quality;
                         }
                     };
 
@@ -1762,7 +1852,13 @@ else if (FASTQ_FILE_FORMAT.equals(form.getExportType()))
             {
 
             }
-            return super.getView(form, errors);
+
+            ModelAndView view = super.getView(form, errors);
+
+            if (null == _pager || form.isExport())
+                return view;
+
+            return new VBox(new JspView<>("/org/labkey/genotyping/view/readsPager.jsp", _pager), (HttpView)view);
         }
 
         @Override
@@ -1782,16 +1878,96 @@ protected QueryView createQueryView(FORM form, BindException errors, boolean for
             {
                 settings.getBaseSort().insertSortColumn("RowId");
             }
-            handleSettings(settings);
+            addBaseConditions(settings.getBaseFilter());
 
             QueryView qv = new GenotypingQuerySchema(getUser(), getContainer()).createView(getViewContext(), settings, errors);
             qv.setShadeAlternatingRows(true);
+
+            // Illumina reads are sorted by file and sample, not RowId, so their pages can't be keyed by RowId
+            if (!forExport && !platform.equals(GenotypingManager.SEQUENCE_PLATFORMS.ILLUMINA.toString()) && isKeysetPageable(settings, qv.getCustomView()))
+            {
+                // The settings' base filter is applied when the view renders, so the seek condition can be added here
+                if (null != form.getSeek())
+                {
+                    settings.getBaseFilter().addCondition(FieldKey.fromParts("RowId"), form.getSeek(), CompareType.GTE);
+                    settings.setOffset(0);
+                }
+
+                // Replaces the offset pager and its exact row count
+                qv.setShowPagination(false);
+                _pager = createPager(qv.getTable(), form.getSeek(), settings.getMaxRows());
+            }
+
             return qv;
         }
 
-        protected abstract void handleSettings(QuerySettings settings);
+        // Reads and match reads in their default RowId order can be paged by key: each page selects RowId >= the
+        // page's first RowId, a range scan of IDX_ReadsRunRowId, so page N costs the same as page 1 instead of an
+        // OFFSET scan. Any user sort, filter, or custom view falls back to normal paging, as does a customized default
+        // view that saves a sort or filter, since the pager's keys assume the base conditions in RowId order.
+        private boolean isKeysetPageable(QuerySettings settings, @Nullable CustomView view)
+        {
+            String tableName = getTableName();
+
+            if (!TableType.Reads.toString().equals(tableName) && !TableType.MatchReads.toString().equals(tableName))
+                return false;
+
+            if (null != settings.getViewName() || settings.getShowRows() != ShowRows.PAGINATED)
+                return false;
+
+            if (null != view && view.hasFilterOrSort())
+                return false;
+
+            String prefix = DATA_REGION_NAME + ".";
+
+            for (String name : getViewContext().getActionURL().getParameterMap().keySet())
+                if (name.startsWith(prefix) && (name.contains("~") || name.equals(prefix + "sort")))
+                    return false;
+
+            return true;
+        }
+
+        // Finds the first RowIds of the next and previous pages, each by reading at most one page of RowIds
+        private ReadsPagerBean createPager(TableInfo table, @Nullable Integer seek, int pageSize)
+        {
+            ActionURL url = getViewContext().cloneActionURL().deleteParameter(DATA_REGION_NAME + ".offset");
+
+            SimpleFilter nextFilter = new SimpleFilter();
+            addBaseConditions(nextFilter);
+            if (null != seek)
+                nextFilter.addCondition(FieldKey.fromParts("RowId"), seek, CompareType.GTE);
+            List<Integer> page = new TableSelector(table, PageFlowUtil.set("RowId"), nextFilter, new Sort("RowId")).setMaxRows(pageSize + 1).getArrayList(Integer.class);
+            ActionURL nextURL = page.size() > pageSize ? url.clone().replaceParameter("seek", String.valueOf(page.get(pageSize))) : null;
+
+            ActionURL firstURL = null;
+            ActionURL previousURL = null;
+
+            if (null != seek)
+            {
+                SimpleFilter previousFilter = new SimpleFilter();
+                addBaseConditions(previousFilter);
+                previousFilter.addCondition(FieldKey.fromParts("RowId"), seek, CompareType.LT);
+                List<Integer> previous = new TableSelector(table, PageFlowUtil.set("RowId"), previousFilter, new Sort("-RowId")).setMaxRows(pageSize).getArrayList(Integer.class);
+
+                firstURL = url.clone().deleteParameter("seek");
+
+                // A short previous page is the first page
+                if (!previous.isEmpty())
+                    previousURL = previous.size() < pageSize ? firstURL : url.clone().replaceParameter("seek", String.valueOf(previous.get(previous.size() - 1)));
+            }
+
+            return new ReadsPagerBean(getEstimatedRowCount(), firstURL, previousURL, nextURL);
+        }
+
+        protected abstract void addBaseConditions(SimpleFilter filter);
 
         protected abstract String getTableName();
+
+        // Row count from maintained statistics, without counting rows; null if unknown
+        protected @Nullable Long getEstimatedRowCount()
+        {
+            return null;
+        }
     }
 
 
@@ -1854,6 +2030,15 @@ protected void renderInternal(Object model, PrintWriter out) throws Exception
                 });
             }
 
+            // Per-sample totals maintained during import, so they don't require scanning the reads
+            QuerySettings statisticsSettings = new QuerySettings(getViewContext(), "SampleReadStatistics", TableType.SampleReadStatistics.toString());
+            statisticsSettings.getBaseFilter().addCondition(FieldKey.fromParts("Run"), _run.getRowId());
+            statisticsSettings.getBaseSort().insertSortColumn("SampleId");
+            QueryView statistics = new GenotypingQuerySchema(getUser(), getContainer()).createView(getViewContext(), statisticsSettings, errors);
+            statistics.setTitle("Read Statistics");
+            statistics.setShadeAlternatingRows(true);
+            vbox.addView(statistics);
+
             vbox.addView(readsView);
 
             return vbox;
@@ -1872,9 +2057,17 @@ protected String getTableName()
         }
 
         @Override
-        protected void handleSettings(QuerySettings settings)
+        protected void addBaseConditions(SimpleFilter filter)
+        {
+            filter.addCondition(FieldKey.fromParts("Run"), _run.getRowId());
+        }
+
+        @Override
+        protected @Nullable Long getEstimatedRowCount()
         {
-            settings.getBaseFilter().addCondition(FieldKey.fromParts("Run"), _run.getRowId());
+            // Recorded when the run's import completes
+            GenotypingSchema gs = GenotypingSchema.get();
+            return new SqlSelector(gs.getSchema(), "SELECT ReadCount FROM " + gs.getRunsTable() + " WHERE RowId = ?", _run.getRowId()).getObject(Long.class);
         }
     }
 
@@ -1896,7 +2089,9 @@ public boolean handlePost(Object o, BindException errors)
             for (Integer runId : runs)
             {
                 GenotypingRun run = gm.getRun(getContainer(), runId);
-                gm.deleteRun(run);
+
+                if (null != run)
+                    GenotypingPurger.get().queueRun(run);
             }
 
             return true;
@@ -1926,7 +2121,7 @@ public boolean handlePost(Object o, BindException errors) throws Exception
             for (Integer analysisId : DataRegionSelection.getSelectedIntegers(getViewContext(), true))
             {
                 GenotypingAnalysis analysis = gm.getAnalysis(getContainer(), analysisId);
-                gm.deleteAnalysis(analysis);
+                GenotypingPurger.get().queueAnalysis(analysis);
             }
 
             return true;
@@ -2003,11 +2198,18 @@ protected String getTableName()
         }
 
         @Override
-        protected void handleSettings(QuerySettings settings)
+        protected void addBaseConditions(SimpleFilter filter)
+        {
+            filter.addCondition(FieldKey.fromParts("Run"), _analysis.getRun());
+            filter.addCondition(FieldKey.fromParts("RowId", "MatchId"), _matchId);
+        }
+
+        @Override
+        protected @Nullable Long getEstimatedRowCount()
         {
-            SimpleFilter baseFilter = settings.getBaseFilter();
-            baseFilter.addCondition(FieldKey.fromParts("Run"), _analysis.getRun());
-            baseFilter.addCondition(FieldKey.fromParts("RowId", "MatchId"), _matchId);
+            // Each match records the number of reads it was built from
+            GenotypingSchema gs = GenotypingSchema.get();
+            return new SqlSelector(gs.getSchema(), "SELECT Reads FROM " + gs.getMatchesTable() + " WHERE RowId = ? AND Analysis = ?", _matchId, _analysis.getRowId()).getObject(Long.class);
         }
     }
 
@@ -18,8 +18,13 @@
 
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
+import org.labkey.api.audit.AuditLogService;
+import org.labkey.api.audit.AuditTypeEvent;
+import org.labkey.api.audit.provider.ContainerAuditProvider;
 import org.labkey.api.data.AtomicDatabaseInteger;
+import org.labkey.api.data.CompareType;
 import org.labkey.api.data.Container;
+import org.labkey.api.data.DbScope;
 import org.labkey.api.data.PropertyManager;
 import org.labkey.api.data.PropertyManager.WritablePropertyMap;
 import org.labkey.api.data.SQLFragment;
@@ -135,9 +140,14 @@ public GenotypingRun createRun(Container c, User user, Integer metaDataId, File
         return Table.insert(user, GenotypingSchema.get().getRunsTable(), run);
     }
 
+    // Runs being deleted in the background are treated as already gone
     public @Nullable GenotypingRun getRun(Container c, int runId)
     {
-        return new TableSelector(GenotypingSchema.get().getRunsTable()).getObject(c, runId, GenotypingRun.class);
+        SimpleFilter filter = SimpleFilter.createContainerFilter(c);
+        filter.addCondition(FieldKey.fromParts("RowId"), runId);
+        filter.addCondition(FieldKey.fromParts("Status"), Status.Deleting.getStatusId(), CompareType.NEQ_OR_NULL);
+
+        return new TableSelector(GenotypingSchema.get().getRunsTable(), filter, null).getObject(GenotypingRun.class);
     }
 
     public MetaDataRun getMetaDataRun(Container c, User user, int runId, String action)
@@ -164,7 +174,7 @@ public GenotypingAnalysis createAnalysis(Container c, User user, GenotypingRun r
 
         GenotypingAnalysis analysis = new TableSelector(GenotypingSchema.get().getAnalysesTable()).getObject(analysisId, GenotypingAnalysis.class);
 
-        if (null != analysis)
+        if (null != analysis && Status.Deleting.getStatusId() != analysis.getStatus())
         {
             GenotypingRun run = getRun(c, analysis.getRun());
 
@@ -191,16 +201,19 @@ public boolean updateAnalysisStatus(GenotypingAnalysis analysis, User user, Stat
     }
 
 
+    // Like getRun(), leaves out runs being deleted in the background; the purger owns those
     public Collection<GenotypingRun> getRuns(Container c)
     {
         SimpleFilter filter = SimpleFilter.createContainerFilter(c);
+        filter.addCondition(FieldKey.fromParts("Status"), Status.Deleting.getStatusId(), CompareType.NEQ_OR_NULL);
         TableSelector selector = new TableSelector(GenotypingSchema.get().getRunsTable(), filter, null);
 
         return selector.getCollection(GenotypingRun.class);
     }
 
 
-    // Delete all runs, reads, analyses, matches, and junction table rows associated with this container
+    // Delete all runs, reads, analyses, matches, and junction table rows associated with this container. Runs already
+    // queued for deletion are left to the background purger rather than purged twice at once.
     public void delete(Container c)
     {
         for (GenotypingRun run : getRuns(c))
@@ -246,38 +259,10 @@ public void delete(Container c)
 
 
     // Deletes all the reads, analyses, and matches associated with a run, including rows in all junction tables.
+    // Deletes in chunks on the calling thread; see GenotypingPurger.queueRun() to delete in the background.
     public void deleteRun(GenotypingRun run)
     {
-        GenotypingSchema gs = GenotypingSchema.get();
-        deleteAnalyses(" WHERE Run = ? AND Run IN (SELECT RowId FROM " + gs.getRunsTable() + " WHERE Container = ?)", run.getRowId(), run.getContainer());
-
-        SqlExecutor executor = new SqlExecutor(gs.getSchema());
-        executor.execute("DELETE FROM " + gs.getReadsTable() + " WHERE Run = ?", run.getRowId());
-        executor.execute("DELETE FROM " + gs.getSequenceFilesTable() + " WHERE Run = ?", run.getRowId());
-        executor.execute("DELETE FROM " + gs.getRunsTable() + " WHERE RowId = ?", run.getRowId());
-    }
-
-
-    public void deleteAnalysis(GenotypingAnalysis analysis)
-    {
-        GenotypingSchema gs = GenotypingSchema.get();
-        deleteAnalyses(" WHERE RowId = ? AND Run IN (SELECT RowId FROM " + gs.getRunsTable() + " WHERE Container = ?)", analysis.getRowId(), analysis.getContainer());
-    }
-
-
-    private void deleteAnalyses(CharSequence analysisFilter, Object... params)
-    {
-        GenotypingSchema gs = GenotypingSchema.get();
-        String analysisFrom = " FROM " + gs.getAnalysesTable() + analysisFilter;
-        String analysisWhere = " WHERE Analysis IN (SELECT RowId" + analysisFrom + ")";
-        String matchesWhere = " WHERE MatchId IN (SELECT RowId FROM " + gs.getMatchesTable() + analysisWhere + ")";
-
-        SqlExecutor executor = new SqlExecutor(gs.getSchema());
-        executor.execute("DELETE FROM " + gs.getAllelesJunctionTable() + matchesWhere, params);
-        executor.execute("DELETE FROM " + gs.getReadsJunctionTable() + matchesWhere, params);
-        executor.execute("DELETE FROM " + gs.getMatchesTable() + analysisWhere, params);
-        executor.execute("DELETE FROM " + gs.getAnalysisSamplesTable() + analysisWhere, params);
-        executor.execute("DELETE " + analysisFrom, params);
+        GenotypingPurger.get().purgeRun(run.getRowId());
     }
 
 
@@ -326,11 +311,34 @@ public Properties readProperties(File directory) throws IOException
     }
 
 
+    // Returns the number of rows in table matching where, using a real COUNT(*) rather than selecting and counting rows
+    public long count(TableInfo table, SQLFragment where)
+    {
+        SQLFragment sql = new SQLFragment("SELECT COUNT(*) FROM " + table + " WHERE ").append(where);
+        Long count = new SqlSelector(table.getSchema(), sql).getObject(Long.class);
+
+        return null == count ? 0 : count;
+    }
+
+
+    // Sums the maintained count column (ReadCount or MatchCount) of the selected parents, falling back to counting the
+    // child rows of parents with no recorded count: those imported before counts were maintained, or still importing.
+    // Folder summaries are then nearly free once every run and analysis has completed.
+    private long sumCounts(TableInfo parents, String countColumn, SQLFragment parentWhere, TableInfo children, String parentColumn)
+    {
+        SQLFragment maintained = new SQLFragment("SELECT SUM(" + countColumn + ") FROM " + parents + " WHERE " + countColumn + " IS NOT NULL AND ").append(parentWhere);
+        Long sum = new SqlSelector(parents.getSchema(), maintained).getObject(Long.class);
+
+        SQLFragment uncounted = new SQLFragment(parentColumn + " IN (SELECT RowId FROM " + parents + " WHERE " + countColumn + " IS NULL AND ").append(parentWhere).append(")");
+
+        return (null == sum ? 0 : sum) + count(children, uncounted);
+    }
+
+
     // Return number of runs in the specified container
-    public int getRunCount(Container c)
+    public long getRunCount(Container c)
     {
-        SimpleFilter filter = SimpleFilter.createContainerFilter(c);
-        return (int)new TableSelector(GenotypingSchema.get().getRunsTable(), filter, null).getRowCount();
+        return count(GenotypingSchema.get().getRunsTable(), new SQLFragment("Container = ?", c));
     }
 
 
@@ -338,18 +346,19 @@ public int getRunCount(Container c)
     public long getReadCount(Container c, @Nullable GenotypingRun run)
     {
         GenotypingSchema gs = GenotypingSchema.get();
-        TableInfo reads = gs.getReadsTable();
-        TableInfo runs = gs.getRunsTable();
-
-        SQLFragment sql = new SQLFragment("SELECT RowId FROM " + reads + " WHERE Run IN (SELECT RowId FROM " + runs + " WHERE Container = ?)", c);
+        SQLFragment runWhere = new SQLFragment("Container = ?", c);
 
         if (null != run)
-        {
-            sql.append(" AND Run = ?");
-            sql.add(run.getRowId());
-        }
+            runWhere.append(" AND RowId = ?").add(run.getRowId());
 
-        return (int)new SqlSelector(gs.getSchema(), sql).getRowCount();
+        return sumCounts(gs.getRunsTable(), "ReadCount", runWhere, gs.getReadsTable(), "Run");
+    }
+
+
+    // Counts the run's reads; recorded as the run's ReadCount when its import completes (see ReadsJob.updateRunStatus())
+    public long countReads(GenotypingRun run)
+    {
+        return count(GenotypingSchema.get().getReadsTable(), new SQLFragment("Run = ?", run.getRowId()));
     }
 
 
@@ -360,61 +369,50 @@ public boolean hasAnalyses(GenotypingRun run)
 
 
     // Return number of analyses... associated with the specified run (run != null) or in the folder (run == null)
-    public int getAnalysisCount(Container c, @Nullable GenotypingRun run)
+    public long getAnalysisCount(Container c, @Nullable GenotypingRun run)
     {
         GenotypingSchema gs = GenotypingSchema.get();
-        TableInfo analyses = gs.getAnalysesTable();
-        TableInfo runs = gs.getRunsTable();
-
-        SQLFragment sql = new SQLFragment("SELECT RowId FROM " + analyses + " WHERE Run IN (SELECT RowId FROM " + runs + " WHERE Container = ?)", c);
 
-        if (null != run)
-        {
-            sql.append(" AND Run = ?");
-            sql.add(run.getRowId());
-        }
-
-        return (int)new SqlSelector(gs.getSchema(), sql).getRowCount();
+        return count(gs.getAnalysesTable(), getAnalysisWhere(c, run, null));
     }
 
 
     // Return number of matches... associated with the specified analysis (analysis != null) or in the folder (analysis == null)
-    public int getMatchCount(Container c, @Nullable GenotypingAnalysis analysis)
+    public long getMatchCount(Container c, @Nullable GenotypingAnalysis analysis)
     {
         GenotypingSchema gs = GenotypingSchema.get();
-        TableInfo matches = gs.getMatchesTable();
-        TableInfo analyses = gs.getAnalysesTable();
-        TableInfo runs = gs.getRunsTable();
 
-        SQLFragment sql = new SQLFragment("SELECT RowId FROM " + matches + " WHERE Analysis IN (SELECT RowId FROM " + analyses + " WHERE Run IN (SELECT RowId FROM " + runs + " WHERE Container = ?))", c);
+        return sumCounts(gs.getAnalysesTable(), "MatchCount", getAnalysisWhere(c, null, analysis), gs.getMatchesTable(), "Analysis");
+    }
+
+
+    // Selects the folder's analyses, optionally only those of one run or just one analysis
+    private SQLFragment getAnalysisWhere(Container c, @Nullable GenotypingRun run, @Nullable GenotypingAnalysis analysis)
+    {
+        SQLFragment where = new SQLFragment("Run IN (SELECT RowId FROM " + GenotypingSchema.get().getRunsTable() + " WHERE Container = ?)", c);
+
+        if (null != run)
+            where.append(" AND Run = ?").add(run.getRowId());
 
         if (null != analysis)
-        {
-            sql.append(" AND Analysis = ?");
-            sql.add(analysis.getRowId());
-        }
+            where.append(" AND RowId = ?").add(analysis.getRowId());
 
-        return (int)new SqlSelector(gs.getSchema(), sql).getRowCount();
+        return where;
     }
 
-    public int insertMatch(User user, GenotypingAnalysis analysis, int sampleId, ResultSet rs, int[] readIds, int[] alleleIds) throws SQLException
+
+    // Records the analysis's match count once its matches are imported, so getMatchCount() needn't count them again
+    public void updateMatchCount(GenotypingAnalysis analysis)
     {
         GenotypingSchema gs = GenotypingSchema.get();
+        long matches = count(gs.getMatchesTable(), new SQLFragment("Analysis = ?", analysis.getRowId()));
+        new SqlExecutor(gs.getSchema()).execute("UPDATE " + gs.getAnalysesTable() + " SET MatchCount = ? WHERE RowId = ?", matches, analysis.getRowId());
+    }
 
-        Map<String, Object> row = new HashMap<>();
-        row.put("Analysis", analysis.getRowId());
-        row.put("SampleId", sampleId);
-        row.put("Reads", rs.getInt("reads"));
-        row.put("Percent", rs.getFloat("percent"));
-        row.put("AverageLength", rs.getFloat("avg_length"));
-        row.put("PosReads", rs.getInt("pos_reads"));
-        row.put("NegReads", rs.getInt("neg_reads"));
-        row.put("PosExtReads", rs.getInt("pos_ext_reads"));
-        row.put("NegExtReads", rs.getInt("neg_ext_reads"));
-
-        Map<String, Object> matchOut = Table.insert(user, gs.getMatchesTable(), row);
-
-        int matchId = (Integer)matchOut.get("RowId");
+    public int insertMatch(User user, GenotypingAnalysis analysis, int sampleId, ResultSet rs, int[] readIds, int[] alleleIds) throws SQLException
+    {
+        GenotypingSchema gs = GenotypingSchema.get();
+        int matchId = insertMatch(user, analysis.getRowId(), sampleId, rs);
 
         // Insert all the alleles in this group into AllelesJunction table
         if (alleleIds.length > 0)
@@ -446,6 +444,28 @@ public int insertMatch(User user, GenotypingAnalysis analysis, int sampleId, Res
         return matchId;
     }
 
+    // Inserts just the Matches row, reading its statistics from the current row of rs; returns the new RowId
+    int insertMatch(User user, int analysisId, int sampleId, ResultSet rs) throws SQLException
+    {
+        Map<String, Object> row = new HashMap<>();
+        row.put("Analysis", analysisId);
+        row.put("SampleId", sampleId);
+        row.put("Reads", rs.getInt("reads"));
+        row.put("Percent", rs.getFloat("percent"));
+        row.put("AverageLength", rs.getFloat("avg_length"));
+        row.put("PosReads", rs.getInt("pos_reads"));
+        row.put("NegReads", rs.getInt("neg_reads"));
+        row.put("PosExtReads", rs.getInt("pos_ext_reads"));
+        row.put("NegExtReads", rs.getInt("neg_ext_reads"));
+
+        Map<String, Object> matchOut = Table.insert(user, GenotypingSchema.get().getMatchesTable(), row);
+
+        return (Integer)matchOut.get("RowId");
+    }
+
+    // Matches are marked deleted in chunks of this many RowIds, keeping IN lists well under parameter limits
+    private static final int DELETE_MATCHES_CHUNK_SIZE = 1000;
+
     public int deleteMatches(Container c, User user, int analysisId, List<Integer> matchIds)
     {
         // Validate analysis was posted and exists in this container
@@ -455,25 +475,41 @@ public int deleteMatches(Container c, User user, int analysisId, List<Integer> m
         if (matchIds.size() < 1)
             throw new IllegalStateException("No matches were selected");
 
-        // Count the corresponding matches in the database, making sure they belong to this analysis
-        SimpleFilter filter = new SimpleFilter(FieldKey.fromParts("Analysis"), analysis.getRowId());
-        filter.addInClause(FieldKey.fromParts("RowId"), matchIds);
-        TableInfo tinfo = GenotypingQuerySchema.TableType.Matches.createTable(new GenotypingQuerySchema(user, c), null, analysis.getRowId());
-        TableSelector selector = new TableSelector(tinfo, tinfo.getColumns("RowId"), filter, null);
-
-        // Verify that the selected match count equals the number of rowIds posted...
-        if (selector.getRowCount() != matchIds.size())
-            throw new IllegalStateException("Selected match" + (1 == matchIds.size() ? " has" : "es have") + " been modified");
-
         // Mark all the posted matches with ParentId = 0; this will filter them out from all displays and queries,
-        // effectively "deleting" them. In the future, we could add a mode to show these matches again, to audit changes.
+        // effectively "deleting" them. Each chunk is a single set-based UPDATE that only touches undeleted matches
+        // in this analysis, so the update counts double as validation: if they don't add up to the number of rowIds
+        // posted, some matches have been modified (or never belonged to this analysis) and everything rolls back.
         GenotypingSchema gs = GenotypingSchema.get();
-        Map<String, Integer> map = new HashMap<>();
-        map.put("ParentId", 0);
+        SqlExecutor executor = new SqlExecutor(gs.getSchema());
+        int count = 0;
 
-        for (Integer matchId : matchIds)
-            Table.update(user, gs.getMatchesTable(), map, matchId);
+        try (DbScope.Transaction transaction = gs.getSchema().getScope().ensureTransaction())
+        {
+            for (int i = 0; i < matchIds.size(); i += DELETE_MATCHES_CHUNK_SIZE)
+            {
+                List<Integer> chunk = matchIds.subList(i, Math.min(i + DELETE_MATCHES_CHUNK_SIZE, matchIds.size()));
+                SQLFragment sql = new SQLFragment("UPDATE " + gs.getMatchesTable() + " SET ParentId = 0 WHERE Analysis = ? AND ParentId IS NULL AND RowId IN (", analysis.getRowId());
+                String separator = "";
+
+                for (Integer matchId : chunk)
+                {
+                    sql.append(separator).append("?").add(matchId);
+                    separator = ", ";
+                }
+
+                sql.append(")");
+                count += executor.execute(sql);
+            }
+
+            if (count != matchIds.size())
+                throw new IllegalStateException("Selected match" + (1 == matchIds.size() ? " has" : "es have") + " been modified");
+
+            AuditTypeEvent event = new AuditTypeEvent(ContainerAuditProvider.CONTAINER_AUDIT_EVENT, c, "Deleted " + count + " match" + (1 == count ? "" : "es") + " from genotyping analysis " + analysis.getRowId());
+            AuditLogService.get().addEvent(user, event);
+
+            transaction.commit();
+        }
 
-        return matchIds.size();
+        return count;
     }
 }
\ No newline at end of file
@@ -27,11 +27,16 @@
 import org.labkey.api.files.TableUpdaterFileListener;
 import org.labkey.api.module.DefaultModule;
 import org.labkey.api.module.FolderTypeManager;
+import org.labkey.api.module.Module;
 import org.labkey.api.module.ModuleContext;
+import org.labkey.api.module.ModuleLoader;
+import org.labkey.api.module.ModuleProperty;
 import org.labkey.api.pipeline.PipelineService;
 import org.labkey.api.util.PageFlowUtil;
 import org.labkey.api.util.StringUtilsLabKey;
 import org.labkey.api.view.WebPartFactory;
+import org.labkey.genotyping.sequences.AlleleLookup;
+import org.labkey.genotyping.sequences.ReadsCodec;
 import org.labkey.genotyping.sequences.SequenceManager;
 
 import java.util.Collection;
@@ -42,6 +47,68 @@
 
 public class GenotypingModule extends DefaultModule
 {
+    public static final String FASTQ_READ_STRATEGY = "FastqReadStrategy";
+    public static final String FASTQ_MIN_THROUGHPUT = "FastqMinThroughput";
+    public static final String FASTQ_PARSER_THREADS = "FastqParserThreads";
+    public static final String FASTQ_VALIDATION_SAMPLE_SIZE = "FastqValidationSampleSize";
+    public static final String READS_COMMIT_SIZE = "ReadsCommitSize";
+    public static final String READS_STORAGE = "ReadsStorage";
+    public static final String ANALYSIS_IMPORT_MODE = "AnalysisImportMode";
+    public static final String ANALYSIS_IMPORT_THREADS = "AnalysisImportThreads";
+    public static final String READS_EXPORT_GZIP = "ReadsExportGzip";
+
+    public GenotypingModule()
+    {
+        addProperty(FASTQ_READ_STRATEGY, FastqInput.ReadStrategy.Auto.name(), "How FASTQ files are read during import: " +
+                "Direct (parse in place), TempCopy (copy to a local temp file first), or Auto (copy only if a read probe is slower than " + FASTQ_MIN_THROUGHPUT + ")");
+        addProperty(FASTQ_MIN_THROUGHPUT, String.valueOf(FastqInput.DEFAULT_MIN_THROUGHPUT), "In Auto mode, the read throughput (MB/sec) below " +
+                "which a FASTQ file is copied to a local temp file before parsing");
+        addProperty(FASTQ_PARSER_THREADS, "0", "Maximum number of FASTQ files parsed concurrently during Illumina and PacBio import; 0 means one per available processor");
+        addProperty(FASTQ_VALIDATION_SAMPLE_SIZE, "0", "If greater than 0, Illumina import checks only this many read headers at the start and end of each FASTQ file " +
+                "(plus a random sample in between) and counts reads without parsing them, falling back to checking every read if the sample is inconsistent; 0 checks every read");
+        addProperty(READS_COMMIT_SIZE, "0", "If greater than 0, 454 reads import commits every this many reads and keeps a checkpoint, so a failed " +
+                "import can be resumed by retrying the job; 0 imports each file in a single transaction");
+        addProperty(READS_STORAGE, ReadsWriter.Storage.Text.name(), "How imported 454 reads are stored: Text, Packed (2-bit sequences and run-length " +
+                "encoded quality scores, lossless), or PackedBinned (as Packed, with quality scores reduced to the eight Illumina bins)");
+        addProperty(ANALYSIS_IMPORT_MODE, "Batched", "How analysis matches are imported: Batched (matches and junction rows are read into the server and " +
+                "inserted in batches) or Database (on PostgreSQL, matches and junction rows are inserted with INSERT ... SELECT without leaving the database)");
+        addProperty(ANALYSIS_IMPORT_THREADS, "1", "If greater than 1, analysis matches are imported one sample at a time on this many threads, each " +
+                "sample committed separately so a failed sample can be retried on its own; 1 imports all samples in a single pass");
+        addProperty(READS_EXPORT_GZIP, "false", "If true, the reads file submitted to Galaxy for analysis is gzipped (reads.txt.gz); only enable " +
+                "if the Galaxy workflow accepts compressed input");
+    }
+
+    private void addProperty(String name, String defaultValue, String description)
+    {
+        ModuleProperty property = new ModuleProperty(this, name);
+        property.setDefaultValue(defaultValue);
+        property.setDescription(description);
+        property.setCanSetPerContainer(false);
+        addModuleProperty(property);
+    }
+
+    public static @Nullable String getPropertyValue(Container c, String name)
+    {
+        Module module = ModuleLoader.getInstance().getModule(GenotypingModule.class);
+        ModuleProperty property = null == module ? null : module.getModuleProperties().get(name);
+
+        return null == property ? null : property.getEffectiveValue(c);
+    }
+
+    public static int getIntPropertyValue(Container c, String name, int defaultValue)
+    {
+        String value = getPropertyValue(c, name);
+
+        try
+        {
+            return null == value ? defaultValue : Integer.parseInt(value.trim());
+        }
+        catch (NumberFormatException e)
+        {
+            return defaultValue;
+        }
+    }
+
     @Override
     public String getName()
     {
@@ -51,7 +118,7 @@ public String getName()
     @Override
     public @Nullable Double getSchemaVersion()
     {
-        return 24.000;
+        return 24.005;
     }
 
     @Override
@@ -78,6 +145,8 @@ public void doStartup(ModuleContext moduleContext)
     {
         // add a container listener so we'll know when our container is deleted:
         ContainerManager.addContainerListener(new GenotypingContainerListener());
+        // pick up any run and analysis deletions interrupted by a shutdown
+        GenotypingPurger.get().resume();
         PipelineService.get().registerPipelineProvider(new Import454ReadsPipelineProvider(this));
         PipelineService.get().registerPipelineProvider(new ImportIlluminaReadsPipelineProvider(this));
         PipelineService.get().registerPipelineProvider(new SubmitAnalysisPipelineProvider(this));
@@ -105,7 +174,7 @@ public Collection<String> getSummary(Container c)
         GenotypingManager gm = GenotypingManager.get();
         Collection<String> list = new LinkedList<>();
 
-        int runCount = gm.getRunCount(c);
+        long runCount = gm.getRunCount(c);
 
         if (runCount > 0)
         {
@@ -113,7 +182,7 @@ public Collection<String> getSummary(Container c)
             list.add(StringUtilsLabKey.pluralize(runCount, "sequencing run") + " containing " + StringUtilsLabKey.pluralize(readCount, "read"));
         }
 
-        int analysisCount = gm.getAnalysisCount(c, null);
+        long analysisCount = gm.getAnalysisCount(c, null);
 
         if (analysisCount > 0)
         {
@@ -122,7 +191,7 @@ public Collection<String> getSummary(Container c)
         }
 
         SequenceManager sm = SequenceManager.get();
-        int dictionaryCount = sm.getDictionaryCount(c);
+        long dictionaryCount = sm.getDictionaryCount(c);
 
         if (dictionaryCount > 0)
         {
@@ -144,7 +213,7 @@ public Set<String> getSchemaNames()
     @Override
     public Set<Class> getUnitTests()
     {
-        return PageFlowUtil.set(HaplotypeDataHandler.TestCase.class, IlluminaFastqParser.DupeTestCase.class);
+        return PageFlowUtil.set(HaplotypeDataHandler.TestCase.class, IlluminaFastqParser.DupeTestCase.class, IlluminaReadHeader.TestCase.class, FastqHeaderSampler.TestCase.class, ReadsCodec.TestCase.class, AlleleLookup.TestCase.class, SampleReadStatistics.TestCase.class, ParallelBgzfInputStream.TestCase.class, Import454ReadsJob.TestCase.class);
     }
 
     @NotNull
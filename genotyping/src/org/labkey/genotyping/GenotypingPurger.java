@@ -0,0 +1,225 @@
+/*
+ * Copyright (c) 2026 LabKey Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.labkey.genotyping;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.labkey.api.data.SqlExecutor;
+import org.labkey.api.data.SqlSelector;
+import org.labkey.api.data.TableInfo;
+import org.labkey.api.util.Formats;
+
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Deletes runs and analyses with all their reads, matches and junction rows. Rows are deleted in RowId ranges of
+ * bounded width, each range its own statement, so no single statement locks more than a chunk of a large run.
+ * <p>
+ * Deletions can be queued to run in the background: the run or analysis is first marked with Status.Deleting, which
+ * hides it from the runs and analyses views right away, and is purged on a single background thread. Since rows
+ * are only deleted, never updated, an interrupted purge simply starts over; anything still marked Deleting at
+ * startup is queued again (see resume()).
+ */
+public class GenotypingPurger
+{
+    private static final Logger LOG = LogManager.getLogger(GenotypingPurger.class);
+    private static final GenotypingPurger _instance = new GenotypingPurger();
+
+    // Junction rows are deleted by match range, so matches use a narrower range than reads
+    private static final int READS_CHUNK_SIZE = 10000;
+    private static final int MATCHES_CHUNK_SIZE = 1000;
+    // Log progress every this many chunks
+    private static final int PROGRESS_INTERVAL = 100;
+
+    private final ExecutorService _executor = Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(r, "Genotyping purge");
+        t.setDaemon(true);
+        return t;
+    });
+
+    // Runs and analyses queued or being purged, so a repeated request doesn't queue them twice
+    private final Set<Integer> _queuedRuns = ConcurrentHashMap.newKeySet();
+    private final Set<Integer> _queuedAnalyses = ConcurrentHashMap.newKeySet();
+
+    private GenotypingPurger()
+    {
+        // prevent external construction with a private default constructor
+    }
+
+    public static GenotypingPurger get()
+    {
+        return _instance;
+    }
+
+    /** Marks the run and its analyses as deleting and purges them in the background */
+    public void queueRun(GenotypingRun run)
+    {
+        GenotypingSchema gs = GenotypingSchema.get();
+        SqlExecutor executor = new SqlExecutor(gs.getSchema());
+        int deleting = Status.Deleting.getStatusId();
+        executor.execute("UPDATE " + gs.getRunsTable() + " SET Status = ? WHERE RowId = ? AND Container = ?", deleting, run.getRowId(), run.getContainer());
+        executor.execute("UPDATE " + gs.getAnalysesTable() + " SET Status = ? WHERE Run = ?", deleting, run.getRowId());
+
+        submitRun(run.getRowId());
+    }
+
+    /** Marks the analysis as deleting and purges it in the background */
+    public void queueAnalysis(GenotypingAnalysis analysis)
+    {
+        GenotypingSchema gs = GenotypingSchema.get();
+        new SqlExecutor(gs.getSchema()).execute("UPDATE " + gs.getAnalysesTable() + " SET Status = ? WHERE RowId = ? AND Run IN (SELECT RowId FROM " +
+                gs.getRunsTable() + " WHERE Container = ?)", Status.Deleting.getStatusId(), analysis.getRowId(), analysis.getContainer());
+
+        submitAnalysis(analysis.getRowId());
+    }
+
+    /** Queues every run and analysis left marked as deleting, e.g., by a purge interrupted by a shutdown */
+    public void resume()
+    {
+        _executor.execute(() -> {
+            GenotypingSchema gs = GenotypingSchema.get();
+            int deleting = Status.Deleting.getStatusId();
+
+            for (Integer runId : new SqlSelector(gs.getSchema(), "SELECT RowId FROM " + gs.getRunsTable() + " WHERE Status = ?", deleting).getArrayList(Integer.class))
+                submitRun(runId);
+
+            // Analyses of deleting runs are purged with their run
+            for (Integer analysisId : new SqlSelector(gs.getSchema(), "SELECT RowId FROM " + gs.getAnalysesTable() + " WHERE Status = ? AND Run NOT IN (SELECT RowId FROM " +
+                    gs.getRunsTable() + " WHERE Status = ?)", deleting, deleting).getArrayList(Integer.class))
+                submitAnalysis(analysisId);
+        });
+    }
+
+    private void submitRun(int runId)
+    {
+        if (!_queuedRuns.add(runId))
+            return;
+
+        _executor.execute(() -> {
+            try
+            {
+                purgeRun(runId);
+            }
+            catch (Throwable t)
+            {
+                LOG.error("Deleting genotyping run " + runId + " failed; it will be retried at the next startup", t);
+            }
+            finally
+            {
+                _queuedRuns.remove(runId);
+            }
+        });
+    }
+
+    private void submitAnalysis(int analysisId)
+    {
+        if (!_queuedAnalyses.add(analysisId))
+            return;
+
+        _executor.execute(() -> {
+            try
+            {
+                purgeAnalysis(analysisId);
+            }
+            catch (Throwable t)
+            {
+                LOG.error("Deleting genotyping analysis " + analysisId + " failed; it will be retried at the next startup", t);
+            }
+            finally
+            {
+                _queuedAnalyses.remove(analysisId);
+            }
+        });
+    }
+
+    /** Deletes the run, its analyses and all their rows on the calling thread */
+    public void purgeRun(int runId)
+    {
+        GenotypingSchema gs = GenotypingSchema.get();
+        SqlExecutor executor = new SqlExecutor(gs.getSchema());
+        long start = System.currentTimeMillis();
+
+        for (Integer analysisId : new SqlSelector(gs.getSchema(), "SELECT RowId FROM " + gs.getAnalysesTable() + " WHERE Run = ?", runId).getArrayList(Integer.class))
+            purgeAnalysis(analysisId);
+
+        long reads = purgeRanges(gs.getReadsTable(), "Run", runId, READS_CHUNK_SIZE, "reads of run " + runId, (low, high) ->
+            executor.execute("DELETE FROM " + gs.getReadsTable() + " WHERE Run = ? AND RowId >= ? AND RowId < ?", runId, low, high));
+
+        executor.execute("DELETE FROM " + gs.getSampleReadStatisticsTable() + " WHERE Run = ?", runId);
+        executor.execute("DELETE FROM " + gs.getSequenceFilesTable() + " WHERE Run = ?", runId);
+        executor.execute("DELETE FROM " + gs.getRunsTable() + " WHERE RowId = ?", runId);
+
+        LOG.info("Deleted genotyping run " + runId + " (" + Formats.commaf0.format(reads) + " reads) in " + (System.currentTimeMillis() - start) + "ms");
+    }
+
+    /** Deletes the analysis and all its matches and junction rows on the calling thread */
+    public void purgeAnalysis(int analysisId)
+    {
+        GenotypingSchema gs = GenotypingSchema.get();
+        SqlExecutor executor = new SqlExecutor(gs.getSchema());
+        long start = System.currentTimeMillis();
+        String matchRange = " WHERE MatchId IN (SELECT RowId FROM " + gs.getMatchesTable() + " WHERE Analysis = ? AND RowId >= ? AND RowId < ?)";
+
+        // Junction rows first, since they reference the matches
+        long matches = purgeRanges(gs.getMatchesTable(), "Analysis", analysisId, MATCHES_CHUNK_SIZE, "matches of analysis " + analysisId, (low, high) -> {
+            executor.execute("DELETE FROM " + gs.getAllelesJunctionTable() + matchRange, analysisId, low, high);
+            executor.execute("DELETE FROM " + gs.getReadsJunctionTable() + matchRange, analysisId, low, high);
+            executor.execute("DELETE FROM " + gs.getMatchesTable() + " WHERE Analysis = ? AND RowId >= ? AND RowId < ?", analysisId, low, high);
+        });
+
+        executor.execute("DELETE FROM " + gs.getAnalysisSamplesTable() + " WHERE Analysis = ?", analysisId);
+        executor.execute("DELETE FROM " + gs.getAnalysesTable() + " WHERE RowId = ?", analysisId);
+
+        LOG.info("Deleted genotyping analysis " + analysisId + " (" + Formats.commaf0.format(matches) + " matches) in " + (System.currentTimeMillis() - start) + "ms");
+    }
+
+    private interface RangeDeleter
+    {
+        void delete(int low, int high);
+    }
+
+    // Walks the RowId range of the table's rows with parentColumn = parentId in steps of chunkSize, calling deleter
+    // for each [low, high) range. RowIds are unique, so each range holds at most chunkSize rows. Returns the number of
+    // rows there were to delete.
+    private long purgeRanges(TableInfo table, String parentColumn, int parentId, int chunkSize, String description, RangeDeleter deleter)
+    {
+        Map<String, Object> bounds = new SqlSelector(table.getSchema(), "SELECT MIN(RowId) AS Low, MAX(RowId) AS High, COUNT(*) AS Total FROM " +
+                table + " WHERE " + parentColumn + " = ?", parentId).getMap();
+        Number low = (Number)bounds.get("Low");
+
+        if (null == low)
+            return 0;
+
+        int high = ((Number)bounds.get("High")).intValue();
+        long total = ((Number)bounds.get("Total")).longValue();
+        int chunks = 0;
+
+        for (long from = low.intValue(); from <= high; from += chunkSize)
+        {
+            int to = (int)Math.min(from + chunkSize, (long)high + 1);
+            deleter.delete((int)from, to);
+
+            if (++chunks % PROGRESS_INTERVAL == 0)
+                LOG.info("Deleting " + description + ": " + Formats.percent1.format((double)(to - low.intValue()) / ((long)high - low.intValue() + 1)) + " of " + Formats.commaf0.format(total) + " rows");
+        }
+
+        return total;
+    }
+}
@@ -94,6 +94,8 @@ FilteredTable createTable(GenotypingQuerySchema schema, ContainerFilter cf)
                 FilteredTable table = new FilteredTable<>(GS.getRunsTable(), schema, cf);
                 table.wrapAllColumns(true);
                 table.getMutableColumn("CreatedBy").setFk(new UserIdQueryForeignKey(schema, true));
+                // Runs queued for deletion disappear right away, while GenotypingPurger deletes their rows
+                table.addCondition(new SimpleFilter(FieldKey.fromParts("Status"), Status.Deleting.getStatusId(), CompareType.NEQ_OR_NULL));
                 setDefaultVisibleColumns(table, "RowId, MetaDataId, Created, CreatedBy");
                 //TODO
                 //table.setDetailsURL(DetailsURL.fromString(c, "/genotyping/runs.view?run=${RowId}"));
@@ -172,6 +174,10 @@ protected void applyContainerFilter(ContainerFilter filter)
                 table.addCondition(containerCondition);
                 setDefaultVisibleColumns(table, "Name, SampleId, Sequence, Quality");
 
+                // Reads imported with packed storage have null Sequence and Quality; display the decoded packed values
+                table.getMutableColumn("Sequence").setDisplayColumnFactory(colInfo -> new PackedReadDisplayColumn(colInfo, false));
+                table.getMutableColumn("Quality").setDisplayColumnFactory(colInfo -> new PackedReadDisplayColumn(colInfo, true));
+
                 // No validation... ignore sample meta data if not set
                 String samplesQuery = new NonValidatingGenotypingFolderSettings(schema.getContainer()).getSamplesQuery();
 
@@ -273,6 +279,7 @@ protected void applyContainerFilter(ContainerFilter filter)
                 SQLFragment containerCondition = new SQLFragment("(SELECT Container FROM " + GS.getRunsTable() + " r WHERE r.RowId = " + GS.getAnalysesTable() + ".Run) = ?");
                 containerCondition.add(schema.getContainer().getId());
                 table.addCondition(containerCondition);
+                table.addCondition(new SimpleFilter(FieldKey.fromParts("Status"), Status.Deleting.getStatusId(), CompareType.NEQ_OR_NULL));
                 setDefaultVisibleColumns(table, "RowId, Run, Created, CreatedBy, Description, SequenceDictionary, SequencesView");
                 table.setDescription("Contains one row per genotyping analysis");
 
@@ -452,6 +459,66 @@ public LinkedHashSet<ClientDependency> getClientDependencies()
             }
         },
 
+        SampleReadStatistics() {
+            @Override
+            FilteredTable createTable(GenotypingQuerySchema schema, ContainerFilter cf)
+            {
+                FilteredTable table = new FilteredTable<GenotypingQuerySchema>(GS.getSampleReadStatisticsTable(), schema, cf)
+                {
+                    @Override
+                    protected void applyContainerFilter(ContainerFilter filter)
+                    {
+                        FieldKey containerFieldKey = FieldKey.fromParts("Container");
+                        clearConditions(containerFieldKey);
+                        SQLFragment sql = new SQLFragment("Run IN (SELECT r.RowId FROM ");
+                        sql.append(GS.getRunsTable(), "r");
+                        sql.append(" WHERE ");
+                        sql.append(filter.getSQLFragment(getSchema(), new SQLFragment("r.Container")));
+                        sql.append(")");
+                        addCondition(sql, containerFieldKey);
+                    }
+                };
+                table.setContainerFilter(table.getContainerFilter());
+
+                table.wrapAllColumns(true);
+                table.getMutableColumn("MinLength").setLabel("Min Length");
+                table.getMutableColumn("MaxLength").setLabel("Max Length");
+
+                // Means are derived from the maintained sums; null for FASTQ runs, which only record read counts
+                ExprColumn meanLength = new ExprColumn(table, "MeanLength", new SQLFragment("(CASE WHEN (TotalBases IS NULL OR ReadCount = 0) THEN NULL " +
+                        "ELSE (TotalBases*1.0/ReadCount) END)"), JdbcType.DOUBLE);
+                meanLength.setLabel("Mean Length");
+                meanLength.setFormat("0.0");
+                table.addColumn(meanLength);
+
+                ExprColumn meanQuality = new ExprColumn(table, "MeanQuality", new SQLFragment("(CASE WHEN (QualitySum IS NULL OR TotalBases IS NULL OR TotalBases = 0) THEN NULL " +
+                        "ELSE (QualitySum*1.0/TotalBases) END)"), JdbcType.DOUBLE);
+                meanQuality.setLabel("Mean Quality");
+                meanQuality.setFormat("0.0");
+                table.addColumn(meanQuality);
+
+                String samplesQuery = new NonValidatingGenotypingFolderSettings(schema.getContainer()).getSamplesQuery();
+
+                if (null != samplesQuery)
+                {
+                    final QueryHelper qHelper = new GenotypingQueryHelper(schema.getContainer(), schema.getUser(), samplesQuery);
+
+                    table.getMutableColumn("SampleId").setFk(new LookupForeignKey(cf, qHelper.getQueryGridURL(), SampleManager.KEY_COLUMN_NAME, SampleManager.KEY_COLUMN_NAME, SampleManager.KEY_COLUMN_NAME)
+                    {
+                        @Override
+                        public TableInfo getLookupTableInfo()
+                        {
+                            return qHelper.getTableInfo(getLookupContainerFilter());
+                        }
+                    });
+                }
+
+                setDefaultVisibleColumns(table, "Run, SampleId, ReadCount, TotalBases, MinLength, MaxLength, MeanLength, MeanQuality");
+                table.setDescription("Contains one row per sample per sequencing run, with read statistics maintained during import");
+
+                return table;
+            }},
+
         Samples() {
             @Override
             FilteredTable createTable(GenotypingQuerySchema schema, ContainerFilter cf)
@@ -73,6 +73,16 @@ public TableInfo getSequenceFilesTable()
         return getSchema().getTable("SequenceFiles");
     }
 
+    public TableInfo getFastqStatisticsTable()
+    {
+        return getSchema().getTable("FastqStatistics");
+    }
+
+    public TableInfo getSampleReadStatisticsTable()
+    {
+        return getSchema().getTable("SampleReadStatistics");
+    }
+
     public TableInfo getReadsTable()
     {
         return getSchema().getTable("Reads");
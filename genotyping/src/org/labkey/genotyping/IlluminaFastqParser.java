@@ -34,14 +34,15 @@
 import org.labkey.api.module.ModuleLoader;
 import org.labkey.api.pipeline.PipelineJob;
 import org.labkey.api.pipeline.PipelineJobException;
+import org.labkey.api.security.User;
 import org.labkey.api.test.TestWhen;
-import org.labkey.api.util.FileUtil;
 import org.labkey.api.util.JunitUtil;
 import org.labkey.api.util.Pair;
 import org.labkey.api.util.TestContext;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
@@ -52,6 +53,11 @@
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 /**
  * This is designed to parse the FASTQ files produced by a single run on an Illumina instrument and produce one gzipped FASTQ
@@ -71,6 +77,12 @@
     private List<File> _files;
     private Map<Pair<Integer, Integer>, FileInfo> _fileInfo = new HashMap<>();
     private Logger _logger;
+    private FastqInput.ReadStrategy _readStrategy = FastqInput.ReadStrategy.Auto;
+    private int _minThroughput = FastqInput.DEFAULT_MIN_THROUGHPUT;
+    private int _parallelism = Runtime.getRuntime().availableProcessors();
+    private int _validationSampleSize = 0;
+    private @Nullable Container _statisticsContainer = null;
+    private @Nullable User _statisticsUser = null;
 
     public IlluminaFastqParser(@Nullable String outputPrefix, Map<Integer, Integer> sampleIndexToIdMap, Map<Integer, Integer> sampleIdToIndexMap, Map<String, Integer> sampleNameToIdMap, Logger logger, List<File> files)
     {
@@ -82,6 +94,42 @@ public IlluminaFastqParser(@Nullable String outputPrefix, Map<Integer, Integer>
         _logger = logger;
     }
 
+    /**
+     * Controls whether FASTQ files are parsed in place or from a local temp copy; see FastqInput
+     * @param minThroughput MB/sec below which the Auto strategy copies the file
+     */
+    public void setReadStrategy(FastqInput.ReadStrategy readStrategy, int minThroughput)
+    {
+        _readStrategy = readStrategy;
+        _minThroughput = minThroughput;
+    }
+
+    /** Maximum number of files to parse concurrently; values < 1 mean one per available processor */
+    public void setParallelism(int parallelism)
+    {
+        _parallelism = parallelism > 0 ? parallelism : Runtime.getRuntime().availableProcessors();
+    }
+
+    /**
+     * Validate only the first and last sampleSize headers of each file, plus a random sample in between, and count
+     * reads without decoding records. Files whose sample looks inconsistent are still validated in full. Values < 1
+     * validate every read.
+     */
+    public void setValidationSampleSize(int sampleSize)
+    {
+        _validationSampleSize = Math.max(0, sampleSize);
+    }
+
+    /**
+     * Reuse the read counts and header statistics recorded for files already seen by an earlier import, and record
+     * them for newly parsed files; see FastqStatisticsManager
+     */
+    public void setStatisticsCache(@Nullable Container c, @Nullable User user)
+    {
+        _statisticsContainer = c;
+        _statisticsUser = user;
+    }
+
     // because Illumina sample CSV files do not provide a clear way to identify the FASTQ files/
     // this method accepts the CSV input and an optional FASTQ file prefix.  it will return any
     // FASTQ files or zipped FASTQs in the same folder as the CSV and filter using the prefix, if provided.
@@ -115,129 +163,52 @@ public Map<Pair<Integer, Integer>, FileInfo> parseFastqFiles(PipelineJob job) th
         Map<File, File> filesToMove = new LinkedHashMap<>();
         Map<String, Integer> fileNameWithoutPairingInfoMap = new LinkedHashMap<>();//ex. if file name is SampleSheet-R1-1234.fastq, this map contains SampleSheet-1234
 
-        int index = 1;
-        for (File f : _files)
+        // Files are parsed concurrently, but pairing validation and target naming happen here, in the original file
+        // order, so the results don't depend on which file finishes first
+        List<ParsedFile> parsedFiles = parseFiles(job);
+        for (ParsedFile parsed : parsedFiles)
         {
-            if (job != null)
-                job.setStatus("PARSING FILE " + index + " OF " + _files.size());
-
-            long length = f.length();
-            if (length == 0)
-            {
-                _logger.info("File " + f.getName() + " has no content to parse.");
+            if (null == parsed)
                 continue;
-            }
 
-            File tempFile = null;
+            File f = parsed.getFile();
+            String fileName = f.getName();
+            int sampleIdx = parsed.getSampleIdx();
+            String sampleName = parsed.getSampleName();
+            int pairNumber = parsed.getPairNumber();
+            int totalReads = parsed.getTotalReads();
 
-            try
+            String error = addToPairingInfoMap(fileName, fileNameWithoutPairingInfoMap, totalReads);
+            if (null != error)
             {
-                // Copy to a temp file for parsing for perf reasons. See issue 48029
-                // Ideally we'd avoid the copy when the file is already on a local file system, but there's no
-                // good way to check if a file is truly local
-                tempFile = FileUtil.createTempFile(FileUtil.getBaseName(f) + ".", "." + FileUtil.getExtension(f));
-                tempFile.deleteOnExit();
-                _logger.debug("Copying to temp file " + tempFile + ", size is " + f.length() + " bytes");
-                FileUtil.copyFile(f, tempFile);
-
-                _logger.info("Beginning to parse file: " + f.getName());
-                try (FastqReader reader = new FastqReader(tempFile))
-                {
-                    File targetDir = f.getParentFile();
-                    String fileName = f.getName();
-
-                    int sampleIdx = Integer.MIN_VALUE;
-                    String sampleName = null;
-                    int pairNumber = Integer.MIN_VALUE;
-                    int totalReads = 0;
-                    while (reader.hasNext())
-                    {
-                        FastqRecord fq = reader.next();
-                        String header = fq.getReadName();
-                        IlluminaReadHeader parsedHeader = new IlluminaReadHeader(header, fileName);
-                        if (parsedHeader.getSampleName() != null)  // may be new header format, so let's try alternate lookup
-                        {
-                            sampleName = parsedHeader.getSampleName();
-
-                            // First try to resolve as a sample name
-                            Integer sampleId = _sampleNameToIdMap.get(parsedHeader.getSampleName());
-                            if (sampleId == null)
-                            {
-                                try
-                                {
-                                    sampleId = Integer.parseInt(parsedHeader.getSampleName());
-                                }
-                                catch (NumberFormatException e)
-                                {
-                                    throw new PipelineJobException("Could not resolve sample ID for sample named '" + parsedHeader.getSampleName() + "'. Sample map is: " + _sampleNameToIdMap);
-                                }
-                                Integer sampleIndex = _sampleIdToIndexMap.get(sampleId);
-                                if (sampleIndex == null)
-                                {
-                                    throw new PipelineJobException("Could not resolve Sample Index for Sample ID: " + sampleId + ". Id to Index mapping is: " + _sampleIdToIndexMap);
-                                }
-                                parsedHeader.setSampleNum(sampleIndex.intValue());
-                            }
-                        }
-                        if ((sampleIdx != Integer.MIN_VALUE && sampleIdx != parsedHeader.getSampleNum()) ||
-                                (pairNumber != Integer.MIN_VALUE && pairNumber != parsedHeader.getPairNumber()))
-                            throw new IllegalStateException("Only one sample ID is allowed per fastq file.");
-                        sampleIdx = parsedHeader.getSampleNum();
-                        pairNumber = parsedHeader.getPairNumber();
-                        totalReads++;
-                    }
-
-                    String error = addToPairingInfoMap(fileName, fileNameWithoutPairingInfoMap, totalReads);
-                    if (null != error)
-                    {
-                        _logger.error(error);
-                        reader.close();
-                        throw new PipelineJobException();
-                    }
-                    else if (reader.getLineNumber() == 1 && totalReads == 0 && !f.getName().contains("null"))//empty file
-                    {
-                        _logger.warn("File " + fileName + " has no content to parse.");
-                        reader.close();
-                        continue;
-                    }
-                    else
-                    {
-                        reader.close();
-                        Integer sampleId = _sampleIndexToIdMap.get(sampleIdx);
-                        if (sampleIdx != 0 && sampleId == null && sampleName == null)
-                        {
-                            throw new PipelineJobException("Could not resolve id for sample at index " + sampleIdx + ". Sample map is: " + _sampleIndexToIdMap);
-                        }
-                        if (sampleId == null && sampleName != null)
-                        {
-                            sampleId = _sampleNameToIdMap.get(sampleName);
-                        }
-                        String name = (_outputPrefix == null ? "Reads" : _outputPrefix) + "-R" + pairNumber + "-" + (sampleIdx == 0 ? "Control" : sampleId) + ".fastq.gz";
-                        File newFile = new File(targetDir, name);
-
-                        if (!f.equals(newFile))
-                        {
-                            filesToMove.put(f, newFile);
-                        }
-                        Pair<Integer, Integer> key = Pair.of(sampleId, pairNumber);
-                        _fileInfo.put(key, new FileInfo(newFile, totalReads));
-
-                        _logger.info("Finished parsing file: " + f.getName());
-                    }
-                }
+                _logger.error(error);
+                throw new PipelineJobException();
             }
-            catch (IOException e)
+            else if (parsed.isEmpty() && !fileName.contains("null"))//empty file
             {
-                throw new PipelineJobException(e);
+                _logger.warn("File " + fileName + " has no content to parse.");
             }
-            finally
+            else
             {
-                if (tempFile != null)
+                Integer sampleId = _sampleIndexToIdMap.get(sampleIdx);
+                if (sampleIdx != 0 && sampleId == null && sampleName == null)
+                {
+                    throw new PipelineJobException("Could not resolve id for sample at index " + sampleIdx + ". Sample map is: " + _sampleIndexToIdMap);
+                }
+                if (sampleId == null && sampleName != null)
+                {
+                    sampleId = _sampleNameToIdMap.get(sampleName);
+                }
+                String name = (_outputPrefix == null ? "Reads" : _outputPrefix) + "-R" + pairNumber + "-" + (sampleIdx == 0 ? "Control" : sampleId) + ".fastq.gz";
+                File newFile = new File(f.getParentFile(), name);
+
+                if (!f.equals(newFile))
                 {
-                    tempFile.delete();
+                    filesToMove.put(f, newFile);
                 }
+                Pair<Integer, Integer> key = Pair.of(sampleId, pairNumber);
+                _fileInfo.put(key, new FileInfo(newFile, totalReads));
             }
-            index++;
         }
 
         checkForDuplicateTargets(filesToMove);
@@ -258,9 +229,343 @@ else if (reader.getLineNumber() == 1 && totalReads == 0 && !f.getName().contains
         {
             throw new PipelineJobException(e);
         }
+
+        saveStatistics(parsedFiles, filesToMove);
+
         return Collections.unmodifiableMap(_fileInfo);
     }
 
+    // Records statistics under each file's final name, so a later import of the renamed files finds them
+    private void saveStatistics(List<ParsedFile> parsedFiles, Map<File, File> filesToMove)
+    {
+        if (null == _statisticsContainer || null == _statisticsUser)
+            return;
+
+        for (ParsedFile parsed : parsedFiles)
+        {
+            if (null == parsed || null == parsed.getFingerprint())
+                continue;
+
+            File target = filesToMove.getOrDefault(parsed.getFile(), parsed.getFile());
+            if (parsed.isCached() && target.equals(parsed.getFile()))
+                continue;
+
+            FastqStatisticsManager.FastqStatistics statistics = new FastqStatisticsManager.FastqStatistics(parsed.getTotalReads(),
+                    parsed.getTotalReads() == 0 ? null : (parsed.getSampleName() != null ? IlluminaReadHeader.NO_SAMPLE_NUMBER_FOUND : parsed.getSampleIdx()),
+                    parsed.getSampleName(),
+                    parsed.getTotalReads() == 0 ? null : parsed.getPairNumber());
+            FastqStatisticsManager.get().saveStatistics(_statisticsContainer, _statisticsUser, parsed.getFingerprint().forFile(target), statistics);
+        }
+    }
+
+    // Parses every file on a bounded pool of worker threads. Returns results in _files order; null entries are files
+    // with no content.
+    private List<ParsedFile> parseFiles(@Nullable PipelineJob job) throws PipelineJobException
+    {
+        int threads = Math.max(1, Math.min(_parallelism, _files.size()));
+        ExecutorService pool = Executors.newFixedThreadPool(threads, r -> {
+            Thread t = new Thread(r, "Illumina FASTQ parser");
+            t.setDaemon(true);
+            return t;
+        });
+        CompletionService<Integer> completionService = new ExecutorCompletionService<>(pool);
+        List<ParsedFile> results = new ArrayList<>(Collections.nCopies(_files.size(), null));
+
+        try
+        {
+            if (threads > 1)
+                _logger.info("Parsing " + _files.size() + " files using " + threads + " threads");
+
+            for (int i = 0; i < _files.size(); i++)
+            {
+                final int index = i;
+                completionService.submit(() -> {
+                    results.set(index, parseFile(_files.get(index)));
+                    return index;
+                });
+            }
+
+            // Progress is reported from this thread only, as each file completes
+            for (int completed = 1; completed <= _files.size(); completed++)
+            {
+                if (job != null)
+                    job.setStatus("PARSING FILE " + completed + " OF " + _files.size());
+
+                try
+                {
+                    completionService.take().get();
+                }
+                catch (ExecutionException e)
+                {
+                    Throwable cause = e.getCause();
+
+                    if (cause instanceof PipelineJobException)
+                        throw (PipelineJobException) cause;
+                    if (cause instanceof RuntimeException)
+                        throw (RuntimeException) cause;
+
+                    throw new PipelineJobException(cause);
+                }
+                catch (InterruptedException e)
+                {
+                    Thread.currentThread().interrupt();
+                    throw new PipelineJobException(e);
+                }
+            }
+        }
+        finally
+        {
+            // Abandons any outstanding files if one of them failed
+            pool.shutdownNow();
+        }
+
+        return results;
+    }
+
+    private @Nullable ParsedFile parseFile(File f) throws PipelineJobException
+    {
+        long length = f.length();
+        if (length == 0)
+        {
+            _logger.info("File " + f.getName() + " has no content to parse.");
+            return null;
+        }
+
+        FastqStatisticsManager.Fingerprint fingerprint = null;
+
+        if (null != _statisticsContainer && null != _statisticsUser)
+        {
+            try
+            {
+                fingerprint = FastqStatisticsManager.Fingerprint.of(f);
+            }
+            catch (IOException e)
+            {
+                throw new PipelineJobException(e);
+            }
+
+            FastqStatisticsManager.FastqStatistics statistics = FastqStatisticsManager.get().getStatistics(_statisticsContainer, fingerprint);
+            if (null != statistics && statistics.getReadCount() <= Integer.MAX_VALUE)
+            {
+                _logger.info("Using read count and sample recorded by an earlier import for file: " + f.getName());
+                return fromStatistics(f, fingerprint, statistics);
+            }
+        }
+
+        try (FastqInput input = new FastqInput(f, _readStrategy, _minThroughput, FastqInput.DEFAULT_BUFFER_SIZE, _logger))
+        {
+            _logger.info("Beginning to parse file: " + f.getName());
+
+            if (_validationSampleSize > 0)
+            {
+                ParsedFile sampled = sampleFile(f, fingerprint, input);
+                if (null != sampled)
+                    return sampled;
+            }
+
+            try (FastqReader reader = input.createReader())
+            {
+                String fileName = f.getName();
+                HeaderValidator validator = new HeaderValidator();
+                int totalReads = 0;
+                IlluminaReadHeader parsedHeader = new IlluminaReadHeader();  // reused for every read in the file
+                while (reader.hasNext())
+                {
+                    FastqRecord fq = reader.next();
+                    String header = fq.getReadName();
+                    parsedHeader.parse(header, fileName);
+                    if (!validator.accept(parsedHeader))
+                        throw new IllegalStateException("Only one sample ID is allowed per fastq file.");
+                    totalReads++;
+                }
+
+                _logger.info("Finished parsing file: " + fileName);
+
+                return new ParsedFile(f, fingerprint, false, validator.getSampleIdx(), validator.getSampleName(), validator.getPairNumber(), totalReads, reader.getLineNumber() == 1 && totalReads == 0);
+            }
+        }
+        catch (IOException e)
+        {
+            throw new PipelineJobException(e);
+        }
+    }
+
+    // Counts reads by scanning line breaks and validates only a sample of the headers. Returns null if the sample
+    // turns up any inconsistency, in which case the caller falls back to validating every read.
+    private @Nullable ParsedFile sampleFile(File f, @Nullable FastqStatisticsManager.Fingerprint fingerprint, FastqInput input) throws IOException, PipelineJobException
+    {
+        String fileName = f.getName();
+        HeaderValidator validator = new HeaderValidator();
+        IlluminaReadHeader parsedHeader = new IlluminaReadHeader();
+        FastqHeaderSampler sampler = new FastqHeaderSampler(_validationSampleSize);
+        boolean valid;
+        String problem;
+
+        try (InputStream in = input.openStream())
+        {
+            valid = sampler.scan(in, (buffer, offset, length) -> validator.accept(parsedHeader.parse(buffer, offset, length, fileName)));
+            problem = sampler.getProblem();
+        }
+        catch (IllegalArgumentException e)
+        {
+            valid = false;
+            problem = e.getMessage();
+        }
+
+        if (!valid || sampler.getRecordCount() > Integer.MAX_VALUE)
+        {
+            _logger.info("Sampled validation of " + fileName + " was inconclusive" + (null == problem ? "" : " (" + problem + ")") + ", validating every read");
+            return null;
+        }
+
+        _logger.info("Finished parsing file: " + fileName + " (" + sampler.getRecordCount() + " reads, " + sampler.getSampledCount() + " headers checked)");
+
+        return new ParsedFile(f, fingerprint, false, validator.getSampleIdx(), validator.getSampleName(), validator.getPairNumber(), (int)sampler.getRecordCount(), sampler.getRecordCount() == 0);
+    }
+
+    // Every read was checked when the statistics were recorded, so resolving the one recorded header against this
+    // import's sample maps is enough
+    private ParsedFile fromStatistics(File f, FastqStatisticsManager.Fingerprint fingerprint, FastqStatisticsManager.FastqStatistics statistics) throws PipelineJobException
+    {
+        int totalReads = (int)statistics.getReadCount();
+        HeaderValidator validator = new HeaderValidator();
+
+        if (totalReads > 0 && null != statistics.getSampleIndex() && null != statistics.getPairNumber())
+        {
+            IlluminaReadHeader header = new IlluminaReadHeader();
+            header.setSampleNum(statistics.getSampleIndex());
+            header.setSampleName(statistics.getSampleName());
+            header.setPairNumber(statistics.getPairNumber());
+            validator.accept(header);
+        }
+
+        return new ParsedFile(f, fingerprint, true, validator.getSampleIdx(), validator.getSampleName(), validator.getPairNumber(), totalReads, totalReads == 0);
+    }
+
+    // Resolves the sample of each header in a file and checks that every read shares one sample and pair number
+    private class HeaderValidator
+    {
+        private int _sampleIdx = Integer.MIN_VALUE;
+        private String _sampleName = null;
+        private int _pairNumber = Integer.MIN_VALUE;
+
+        /** @return false if the header's sample or pair number differs from that of earlier headers */
+        private boolean accept(IlluminaReadHeader parsedHeader) throws PipelineJobException
+        {
+            if (parsedHeader.getSampleName() != null)  // may be new header format, so let's try alternate lookup
+            {
+                _sampleName = parsedHeader.getSampleName();
+
+                // First try to resolve as a sample name
+                Integer sampleId = _sampleNameToIdMap.get(parsedHeader.getSampleName());
+                if (sampleId == null)
+                {
+                    try
+                    {
+                        sampleId = Integer.parseInt(parsedHeader.getSampleName());
+                    }
+                    catch (NumberFormatException e)
+                    {
+                        throw new PipelineJobException("Could not resolve sample ID for sample named '" + parsedHeader.getSampleName() + "'. Sample map is: " + _sampleNameToIdMap);
+                    }
+                    Integer sampleIndex = _sampleIdToIndexMap.get(sampleId);
+                    if (sampleIndex == null)
+                    {
+                        throw new PipelineJobException("Could not resolve Sample Index for Sample ID: " + sampleId + ". Id to Index mapping is: " + _sampleIdToIndexMap);
+                    }
+                    parsedHeader.setSampleNum(sampleIndex.intValue());
+                }
+            }
+            if ((_sampleIdx != Integer.MIN_VALUE && _sampleIdx != parsedHeader.getSampleNum()) ||
+                    (_pairNumber != Integer.MIN_VALUE && _pairNumber != parsedHeader.getPairNumber()))
+                return false;
+            _sampleIdx = parsedHeader.getSampleNum();
+            _pairNumber = parsedHeader.getPairNumber();
+            return true;
+        }
+
+        private int getSampleIdx()
+        {
+            return _sampleIdx;
+        }
+
+        private @Nullable String getSampleName()
+        {
+            return _sampleName;
+        }
+
+        private int getPairNumber()
+        {
+            return _pairNumber;
+        }
+    }
+
+    // Result of parsing a single file, before it's matched with its pair and assigned a target name
+    private static class ParsedFile
+    {
+        private final File _file;
+        private final @Nullable FastqStatisticsManager.Fingerprint _fingerprint;
+        private final boolean _cached;
+        private final int _sampleIdx;
+        private final @Nullable String _sampleName;
+        private final int _pairNumber;
+        private final int _totalReads;
+        private final boolean _empty;
+
+        private ParsedFile(File file, @Nullable FastqStatisticsManager.Fingerprint fingerprint, boolean cached, int sampleIdx, @Nullable String sampleName, int pairNumber, int totalReads, boolean empty)
+        {
+            _file = file;
+            _fingerprint = fingerprint;
+            _cached = cached;
+            _sampleIdx = sampleIdx;
+            _sampleName = sampleName;
+            _pairNumber = pairNumber;
+            _totalReads = totalReads;
+            _empty = empty;
+        }
+
+        public File getFile()
+        {
+            return _file;
+        }
+
+        public @Nullable FastqStatisticsManager.Fingerprint getFingerprint()
+        {
+            return _fingerprint;
+        }
+
+        /** True if these results came from statistics recorded by an earlier import rather than from parsing */
+        public boolean isCached()
+        {
+            return _cached;
+        }
+
+        public int getSampleIdx()
+        {
+            return _sampleIdx;
+        }
+
+        public @Nullable String getSampleName()
+        {
+            return _sampleName;
+        }
+
+        public int getPairNumber()
+        {
+            return _pairNumber;
+        }
+
+        public int getTotalReads()
+        {
+            return _totalReads;
+        }
+
+        public boolean isEmpty()
+        {
+            return _empty;
+        }
+    }
+
     public static class FileInfo
     {
         private final File _file;
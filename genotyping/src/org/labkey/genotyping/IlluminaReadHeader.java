@@ -15,9 +15,17 @@
  */
 package org.labkey.genotyping;
 
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+
 /**
 * User: jeckels
 * Date: 5/29/14
+*
+* Parses an Illumina read header by scanning field boundaries in place, without regular expressions or intermediate
+* Strings. Instances are reusable: call parse() once per record to avoid allocating a header object per read.
 */
 public class IlluminaReadHeader
 {
@@ -34,18 +42,55 @@
     private int _sampleNum;
     private String _sampleName;
 
-    private static final int NO_SAMPLE_NUMBER_FOUND = -1;
+    static final int NO_SAMPLE_NUMBER_FOUND = -1;
+    private static final int MAX_FIELDS = 11;
+
+    // Field boundaries within the current header; reused across parse() calls
+    private final int[] _starts = new int[MAX_FIELDS];
+    private final int[] _ends = new int[MAX_FIELDS];
+    private final AsciiSequence _bytes = new AsciiSequence();
+
+    // The instrument and flow cell id are materialized lazily from the header, since most callers never ask for them
+    private String _header;
+
+    // Sample name derived from the file name, cached since every read in a file shares it
+    private String _sampleNameFilename;
+    private String _filenameSampleName;
+
+    public IlluminaReadHeader()
+    {
+    }
 
     public IlluminaReadHeader(String header, String filename) throws IllegalArgumentException
     {
-        String[] h;
+        parse(header, filename);
+    }
+
+    /** Parse header bytes in ASCII, for callers scanning raw FASTQ buffers */
+    public IlluminaReadHeader parse(byte[] buffer, int offset, int length, String filename) throws IllegalArgumentException
+    {
+        _bytes.set(buffer, offset, length);
+
+        try
+        {
+            return parse(_bytes, filename);
+        }
+        finally
+        {
+            _bytes.set(null, 0, 0);
+        }
+    }
+
+    public IlluminaReadHeader parse(CharSequence header, String filename) throws IllegalArgumentException
+    {
+        int length = header.length();
         int minLength;
+        int slash = -1;
 
-        //alternate format: HWI-ST881:298:C15RNACXX:6:2209:15829:47176/1
-        if (header.endsWith("/1") || header.endsWith("/2"))
+        //alternate format: HWI-ST881:298:C15RNACXX:6:2209:15829:47176/1 (the trailing "/" is treated as a separator)
+        if (length >= 2 && header.charAt(length - 2) == '/' && (header.charAt(length - 1) == '1' || header.charAt(length - 1) == '2'))
         {
-            header = header.replaceAll("/1$", ":1");
-            header = header.replaceAll("/2$", ":2");
+            slash = length - 2;
             minLength = 8;
         }
         else
@@ -53,50 +98,68 @@ public IlluminaReadHeader(String header, String filename) throws IllegalArgument
             minLength = 11;
         }
 
-        h = header.split(":| ");
-        if (h.length < minLength)
+        // Split on ":" or " ", dropping trailing empty fields the same way String.split() does
+        int fieldCount = 0;
+        int nonEmptyCount = 0;
+        int start = 0;
+
+        for (int i = 0; i <= length; i++)
+        {
+            if (i == length || i == slash || header.charAt(i) == ':' || header.charAt(i) == ' ')
+            {
+                if (fieldCount < MAX_FIELDS)
+                {
+                    _starts[fieldCount] = start;
+                    _ends[fieldCount] = i;
+                }
+
+                fieldCount++;
+
+                if (i > start)
+                    nonEmptyCount = fieldCount;
+
+                start = i + 1;
+            }
+        }
+
+        int fields = 0 == length ? 1 : nonEmptyCount;
+
+        if (fields < minLength || fields == 9)
         {
-            throw new IllegalArgumentException("Improperly formatted header: " + header);
+            throw new IllegalArgumentException("Improperly formatted header: " + (-1 == slash ? header : header.subSequence(0, slash) + ":" + header.charAt(length - 1)));
         }
 
         try
         {
-            _instrument = h[0];
-            _runId = Integer.parseInt(h[1]);
-            _flowCellId = h[2];
-            _flowCellLane = Integer.parseInt(h[3]);
-            _tileNumber = Integer.parseInt(h[4]);
-            _xCoord = Integer.parseInt(h[5]);
-            _yCoord = Integer.parseInt(h[6]);
-            _pairNumber = Integer.parseInt(h[7]);
+            _runId = parseInt(header, 1);
+            _flowCellLane = parseInt(header, 3);
+            _tileNumber = parseInt(header, 4);
+            _xCoord = parseInt(header, 5);
+            _yCoord = parseInt(header, 6);
+            _pairNumber = parseInt(header, 7);
 
-            if (h.length > 8)
+            _failedFilter = false;
+            _controlBits = 0;
+
+            if (fields > 8)
             {
-                setFailedFilter(h[8]);
-                _controlBits = Integer.parseInt(h[9]);
+                _failedFilter = _ends[8] - _starts[8] == 1 && header.charAt(_starts[8]) == 'Y';
+                _controlBits = parseInt(header, 9);
             }
 
             _sampleNum = NO_SAMPLE_NUMBER_FOUND;
             _sampleName = null;
-            if (h.length > 10)
+            if (fields > 10)
             {
                 //Note: if this read was not demultiplexed by illumina, the index sequence may appear in this position
                 try
                 {
-                    _sampleNum = Integer.parseInt(h[10]);
+                    _sampleNum = parseInt(header, 10);
                 }
                 catch (NumberFormatException e)
                 {
                     // may mean new header format, so attempt to process differently
-                    _sampleName = filename.split("_")[0];
-                    if(_sampleName.endsWith(".gz"))  // whoops, may be new filename format, so try one more filename format
-                    {
-                        String[] sampleNameParts = filename.split("-");
-                        if(sampleNameParts.length == 3)
-                            _sampleName = sampleNameParts[2].split("\\.")[0];
-                        else
-                            throw new IllegalArgumentException("Filename '" + filename + "' is in an unknown name format.");
-                    }
+                    _sampleName = getSampleNameFromFilename(filename);
                 }
             }
         }
@@ -104,15 +167,67 @@ public IlluminaReadHeader(String header, String filename) throws IllegalArgument
         {
             throw new IllegalArgumentException(e.getMessage());
         }
+
+        if (header instanceof String)
+        {
+            _header = (String)header;
+            _instrument = null;
+            _flowCellId = null;
+        }
+        else
+        {
+            // Not immutable, so copy the string fields now
+            _header = null;
+            _instrument = field(header, 0);
+            _flowCellId = field(header, 2);
+        }
+
+        return this;
+    }
+
+    private int parseInt(CharSequence header, int field)
+    {
+        return Integer.parseInt(header, _starts[field], _ends[field], 10);
+    }
+
+    private String field(CharSequence header, int field)
+    {
+        return header.subSequence(_starts[field], _ends[field]).toString();
+    }
+
+    private String getSampleNameFromFilename(String filename)
+    {
+        if (!filename.equals(_sampleNameFilename))
+        {
+            String sampleName = filename.split("_")[0];
+            if(sampleName.endsWith(".gz"))  // whoops, may be new filename format, so try one more filename format
+            {
+                String[] sampleNameParts = filename.split("-");
+                if(sampleNameParts.length == 3)
+                    sampleName = sampleNameParts[2].split("\\.")[0];
+                else
+                    throw new IllegalArgumentException("Filename '" + filename + "' is in an unknown name format.");
+            }
+
+            _sampleNameFilename = filename;
+            _filenameSampleName = sampleName;
+        }
+
+        return _filenameSampleName;
     }
 
     public String getInstrument()
     {
+        if (null == _instrument && null != _header)
+            _instrument = field(_header, 0);
+
         return _instrument;
     }
 
     public void setInstrument(String instrument)
     {
+        getFlowCellId();
+        _header = null;
         _instrument = instrument;
     }
 
@@ -128,11 +243,16 @@ public void setRunId(int runId)
 
     public String getFlowCellId()
     {
+        if (null == _flowCellId && null != _header)
+            _flowCellId = field(_header, 2);
+
         return _flowCellId;
     }
 
     public void setFlowCellId(String flowCellId)
     {
+        getInstrument();
+        _header = null;
         _flowCellId = flowCellId;
     }
 
@@ -233,4 +353,121 @@ public void setSampleName(String sampleName)
     {
         _sampleName = sampleName;
     }
+
+    // Read-only ASCII view of a byte range, so headers in raw buffers can be parsed without decoding them to a String
+    private static class AsciiSequence implements CharSequence
+    {
+        private byte[] _buffer;
+        private int _offset;
+        private int _length;
+
+        private void set(byte[] buffer, int offset, int length)
+        {
+            _buffer = buffer;
+            _offset = offset;
+            _length = length;
+        }
+
+        @Override
+        public int length()
+        {
+            return _length;
+        }
+
+        @Override
+        public char charAt(int index)
+        {
+            return (char)(_buffer[_offset + index] & 0xff);
+        }
+
+        @Override
+        public CharSequence subSequence(int start, int end)
+        {
+            return new String(_buffer, _offset + start, end - start, StandardCharsets.US_ASCII);
+        }
+
+        @Override
+        public String toString()
+        {
+            return new String(_buffer, _offset, _length, StandardCharsets.US_ASCII);
+        }
+    }
+
+    public static class TestCase extends Assert
+    {
+        @Test
+        public void testCasavaHeader()
+        {
+            IlluminaReadHeader header = new IlluminaReadHeader("Z00123:4:000000000-A0F8M:1:1:16257:1463 1:N:0:1", "IlluminaSamples-R1-4892.fastq.gz");
+            assertEquals("Z00123", header.getInstrument());
+            assertEquals(4, header.getRunId());
+            assertEquals("000000000-A0F8M", header.getFlowCellId());
+            assertEquals(1, header.getFlowCellLane());
+            assertEquals(1, header.getTileNumber());
+            assertEquals(16257, header.getxCoord());
+            assertEquals(1463, header.getyCoord());
+            assertEquals(1, header.getPairNumber());
+            assertFalse(header.isFailedFilter());
+            assertEquals(0, header.getControlBits());
+            assertEquals(1, header.getSampleNum());
+            assertNull(header.getSampleName());
+        }
+
+        @Test
+        public void testSlashHeader()
+        {
+            IlluminaReadHeader header = new IlluminaReadHeader("HWI-ST881:298:C15RNACXX:6:2209:15829:47176/2", "reads.fastq");
+            assertEquals("HWI-ST881", header.getInstrument());
+            assertEquals("C15RNACXX", header.getFlowCellId());
+            assertEquals(47176, header.getyCoord());
+            assertEquals(2, header.getPairNumber());
+            assertEquals(NO_SAMPLE_NUMBER_FOUND, header.getSampleNum());
+        }
+
+        @Test
+        public void testSampleNameFromFilename()
+        {
+            IlluminaReadHeader header = new IlluminaReadHeader();
+            header.parse("Z00123:4:000000000-A0F8M:1:1:16257:1463 2:Y:0:TTAGCT", "4892_TTAGCT_L001_R2_001.fastq.gz");
+            assertEquals("4892", header.getSampleName());
+            assertEquals(NO_SAMPLE_NUMBER_FOUND, header.getSampleNum());
+            assertTrue(header.isFailedFilter());
+
+            header.parse("Z00123:4:000000000-A0F8M:1:1:16257:1463 1:N:0:ATCACG", "IlluminaSamplesNewHeader-R1-4894.fastq.gz");
+            assertEquals("4894", header.getSampleName());
+            assertFalse(header.isFailedFilter());
+
+            // Reuse must reset anything carried over from the previous record
+            header.parse("Z00123:4:000000000-A0F8M:1:1:16257:1463 1:N:0:7", "IlluminaSamplesNewHeader-R1-4894.fastq.gz");
+            assertNull(header.getSampleName());
+            assertEquals(7, header.getSampleNum());
+        }
+
+        @Test
+        public void testBytes()
+        {
+            byte[] buffer = "@Z00123:4:000000000-A0F8M:1:1:16257:1463 2:N:0:3\n".getBytes(StandardCharsets.US_ASCII);
+            IlluminaReadHeader header = new IlluminaReadHeader().parse(buffer, 1, buffer.length - 2, "IlluminaSamples-R2-4894.fastq.gz");
+            assertEquals(2, header.getPairNumber());
+            assertEquals(3, header.getSampleNum());
+            assertEquals("Z00123", header.getInstrument());
+        }
+
+        @Test
+        public void testMalformed()
+        {
+            for (String bad : new String[]{"", "Z00123:4:000000000-A0F8M:1:1:16257:1463", "Z00123:4:FC:1:1:16257:1463 1:N:0:", "Z00123:x:FC:1:1:16257:1463 1:N:0:1"})
+            {
+                try
+                {
+                    new IlluminaReadHeader(bad, "reads.fastq");
+                    fail("Expected header to be rejected: " + bad);
+                }
+                catch (IllegalArgumentException e)
+                {
+                    // expected
+                }
+            }
+        }
+    }
 }
@@ -18,30 +18,36 @@
 import com.fasterxml.jackson.annotation.JsonCreator;
 import com.fasterxml.jackson.annotation.JsonProperty;
 import org.apache.commons.lang3.StringUtils;
+import org.jetbrains.annotations.Nullable;
+import org.junit.Assert;
+import org.junit.Test;
 import org.labkey.api.data.DbScope;
 import org.labkey.api.data.RuntimeSQLException;
-import org.labkey.api.data.Table;
+import org.labkey.api.data.SqlSelector;
 import org.labkey.api.data.TableInfo;
 import org.labkey.api.pipeline.PipeRoot;
 import org.labkey.api.pipeline.PipelineJobException;
 import org.labkey.api.reader.ColumnDescriptor;
 import org.labkey.api.reader.TabLoader;
-import org.labkey.api.util.Compress;
 import org.labkey.api.util.FileUtil;
 import org.labkey.api.util.Formats;
 import org.labkey.api.view.ViewBackgroundInfo;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 import java.sql.SQLException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Properties;
 import java.util.Set;
-import java.util.concurrent.atomic.AtomicLong;
-import java.util.zip.DataFormatException;
 
 /**
  * User: adam
@@ -54,7 +60,6 @@
 public class Import454ReadsJob extends ReadsJob
 {
     private final File _reads;
-    private final static boolean TEST_COMRESSION = false;
 
     @JsonCreator
     protected Import454ReadsJob(@JsonProperty("_reads") File reads)
@@ -93,6 +98,15 @@ public void run()
                 else
                     throw se;
             }
+            catch (RuntimeSQLException rse)
+            {
+                // Batched inserts report constraint violations wrapped
+                SQLException se = rse.getSQLException();
+                if (RuntimeSQLException.isConstraintException(se) && StringUtils.containsIgnoreCase(se.getMessage(), "uq_reads_name"))
+                    throw new RuntimeException("A readname in this file already exists in the database; this run may have been imported previously", se);
+                else
+                    throw rse;
+            }
 
             updateRunStatus(Status.Complete);
             info("Import 454 reads complete");
@@ -102,20 +116,23 @@ public void run()
         {
             error("Import 454 reads failed", e);
             setStatus(TaskStatus.error);
-            info("Deleting run " + _run.getRowId());
-            GenotypingManager.get().deleteRun(_run);
+
+            ReadsCheckpoint checkpoint = loadCheckpoint(getCommitSize());
+
+            if (null != checkpoint)
+            {
+                // Distinguishes the kept reads from an import in progress, and keeps them from being analyzed
+                updateRunStatus(Status.PartiallyImported);
+                info("Keeping the " + Formats.commaf0.format(checkpoint.getCount()) + " reads committed for run " + _run.getRowId() + "; retry this job to resume the import");
+            }
+            else
+            {
+                info("Deleting run " + _run.getRowId() + " in the background");
+                GenotypingPurger.get().queueRun(_run);
+            }
         }
     }
 
-    AtomicLong totalSequence = new AtomicLong(0);
-    AtomicLong totalQuality = new AtomicLong(0);
-    AtomicLong deflateSequence = new AtomicLong(0);
-    AtomicLong deflateQuality = new AtomicLong(0);
-    AtomicLong rleSequence = new AtomicLong(0);
-    AtomicLong rleQuality = new AtomicLong(0);
-    AtomicLong rleAsciiSequence = new AtomicLong(0);
-    AtomicLong rleAsciiQuality = new AtomicLong(0);
-
     private void importReads() throws IOException, SQLException, PipelineJobException
     {
         info("Importing " + _reads.getName());
@@ -152,15 +169,38 @@ private void importReads() throws IOException, SQLException, PipelineJobExceptio
 
             SampleManager.SampleIdFinder finder = new SampleManager.SampleIdFinder(_run, getUser(), sampleKeyColumns, "importing reads");
 
-            int rowCount = 0;
-
             TableInfo readsTable = GenotypingSchema.get().getReadsTable();
             DbScope scope = readsTable.getSchema().getScope();
+            ReadsWriter.Storage storage = ReadsWriter.Storage.fromString(GenotypingModule.getPropertyValue(getContainer(), GenotypingModule.READS_STORAGE));
+            ReadsWriter writer = new ReadsWriter(_run.getRowId(), ReadsWriter.DEFAULT_BATCH_SIZE, storage);
+            SampleReadStatistics statistics = new SampleReadStatistics(_run.getRowId());
+            long start = System.currentTimeMillis();
+
+            // If set, commit every commitSize reads and record a checkpoint, so a failed import can be resumed
+            int commitSize = getCommitSize();
+            ReadsCheckpoint checkpoint = loadCheckpoint(commitSize);
+            int resumeAfter = null == checkpoint ? 0 : checkpoint.getCount();
+            int readCount = 0;
+
+            if (resumeAfter > 0)
+                info("Resuming import after read " + checkpoint.getLastRead() + "; " + Formats.commaf0.format(resumeAfter) + " reads were imported previously");
 
             try (DbScope.Transaction transaction = scope.ensureTransaction())
             {
                 for (Map<String, Object> map : loader)
                 {
+                    String name = (String) map.get("name");
+                    readCount++;
+
+                    // Reads up to the checkpoint were committed by an earlier attempt
+                    if (readCount <= resumeAfter)
+                    {
+                        if (readCount == resumeAfter && !checkpoint.getLastRead().equals(name))
+                            throw new PipelineJobException("Read " + readCount + " of " + _reads.getName() + " is " + name + ", but " + checkpoint.getLastRead() + " was expected; the file may have changed since it was partially imported");
+
+                        continue;
+                    }
+
                     Integer mid5 = (Integer) map.get(SampleManager.MID5_COLUMN_NAME);
 
                     // mid5 == 0 means null
@@ -179,82 +219,235 @@ private void importReads() throws IOException, SQLException, PipelineJobExceptio
                         map.put(SampleManager.MID3_COLUMN_NAME, null);
                     }
 
-                    map.put("sampleid", finder.getSampleId(mid5, mid3, (String) map.get(SampleManager.AMPLICON_COLUMN_NAME)));
+                    Integer sampleId = finder.getSampleId(mid5, mid3, (String) map.get(SampleManager.AMPLICON_COLUMN_NAME));
 
                     String sequence = (String) map.get("sequence");
                     String quality = (String) map.get("quality");
 
-                    totalSequence.addAndGet(sequence.length());
-                    totalQuality.addAndGet(quality.length());
-
                     if (sequence.length() != quality.length())
                         throw new PipelineJobException("Sequence length differed from quality score length in read " + map.get("name"));
 
-                    if (TEST_COMRESSION)
-                        compress(sequence, quality);
+                    writer.add(name, sampleId, sequence, quality);
+                    statistics.add(sampleId, sequence, quality);
 
-                    Table.insert(getUser(), readsTable, map);
-                    rowCount++;
+                    if (commitSize > 0 && 0 == writer.getCount() % commitSize)
+                    {
+                        writer.flush();
+                        statistics.flush();
+                        transaction.commitAndKeepConnection();
+                        new ReadsCheckpoint(_run.getRowId(), readCount, name).save(getCheckpointFile());
+                        setStatus(Formats.commaf0.format(readCount) + " READS");
+                    }
 
-                    if (0 == rowCount % 10000)
-                        logReadsProgress("", rowCount);
+                    if (0 == writer.getCount() % 10000)
+                        logReadsProgress("", readCount, writer.getCount(), start);
                 }
 
+                writer.flush();
+                statistics.flush();
                 transaction.commit();
             }
-            logReadsProgress("Importing " + _reads.getName() + " complete: ", rowCount);
+
+            getCheckpointFile().delete();
+            logReadsProgress("Importing " + _reads.getName() + " complete: ", readCount, writer.getCount(), start);
             setStatus("UPDATING STATISTICS");
             info("Updating reads table statistics");
 
-            if (TEST_COMRESSION)
-            {
-                info("Sequence deflate ratio: " + Formats.percent1.format((double) deflateSequence.get() / totalSequence.get()));
-                info("Sequence simple RLE ratio: " + Formats.percent1.format((double) rleSequence.get() / totalSequence.get()));
-                info("Sequence ascii RLE ratio: " + Formats.percent1.format((double) rleAsciiSequence.get() / totalSequence.get()));
-                info("Quality score deflate ratio: " + Formats.percent1.format((double) deflateQuality.get() / totalQuality.get()));
-                info("Quality score simple RLE ratio: " + Formats.percent1.format((double) rleQuality.get() / totalQuality.get()));
-                info("Quality score ascii RLE ratio: " + Formats.percent1.format((double) rleAsciiQuality.get() / totalQuality.get()));
-            }
+            if (ReadsWriter.Storage.Text != storage)
+                info("Packed sequences and quality scores stored in " + Formats.percent1.format(writer.getStorageRatio()) + " of their size as text");
 
             readsTable.getSchema().getSqlDialect().updateStatistics(readsTable);
         }
     }
 
 
-    // Test three potential compression algorithms for sequences & quality scores
-    private void compress(String sequence, String quality)
+    // imported is the number of reads inserted by this attempt, which excludes any skipped when resuming
+    private void logReadsProgress(String prefix, int count, int imported, long start)
     {
-        try
+        String formattedCount = Formats.commaf0.format(count);
+        long elapsed = System.currentTimeMillis() - start;
+        info(prefix + formattedCount + " reads imported" + (elapsed > 0 ? " (" + Formats.commaf0.format(imported * 1000.0 / elapsed) + " reads/sec)" : ""));
+        setStatus(formattedCount + " READS");    // Only visible once committed, so in one big transaction this doesn't update
+    }
+
+
+    private File getCheckpointFile()
+    {
+        return new File(_reads.getParentFile(), _reads.getName() + ".checkpoint");
+    }
+
+
+    private int getCommitSize()
+    {
+        return GenotypingModule.getIntPropertyValue(getContainer(), GenotypingModule.READS_COMMIT_SIZE, 0);
+    }
+
+
+    // Returns this run's checkpoint, reconciled with the reads actually committed. With chunked commits the database
+    // is consulted even if there's no checkpoint file, since an attempt can fail after its first commit but before
+    // writing its first checkpoint.
+    private @Nullable ReadsCheckpoint loadCheckpoint(int commitSize)
+    {
+        ReadsCheckpoint saved = ReadsCheckpoint.load(getCheckpointFile(), _run.getRowId());
+
+        // Without chunked commits or a checkpoint, each attempt is a single transaction that leaves nothing behind
+        if (null == saved && commitSize <= 0)
+            return null;
+
+        TableInfo readsTable = GenotypingSchema.get().getReadsTable();
+        int committed = new SqlSelector(readsTable.getSchema(), "SELECT COUNT(*) FROM " + readsTable + " WHERE Run = ?", _run.getRowId()).getObject(Integer.class);
+        String lastCommitted = 0 == committed ? null : new SqlSelector(readsTable.getSchema(), "SELECT Name FROM " + readsTable +
+                " WHERE RowId = (SELECT MAX(RowId) FROM " + readsTable + " WHERE Run = ?)", _run.getRowId()).getObject(String.class);
+        ReadsCheckpoint checkpoint = ReadsCheckpoint.reconcile(_run.getRowId(), saved, committed, lastCommitted);
+
+        if (null == saved)
         {
-            byte[] b;
-            testAndAccumulate(deflateSequence, sequence, b = Compress.deflate(sequence), Compress.inflate(b));
-            testAndAccumulate(rleSequence, sequence, b = Compress.compressRle(sequence, Compress.Algorithm.SimpleRle), Compress.decompressRle(b, Compress.Algorithm.SimpleRle));
-            testAndAccumulate(rleAsciiSequence, sequence, b = Compress.compressRle(sequence, Compress.Algorithm.AsciiRle), Compress.decompressRle(b, Compress.Algorithm.AsciiRle));
-
-            testAndAccumulate(deflateQuality, quality, b = Compress.deflate(quality), Compress.inflate(b));
-            testAndAccumulate(rleQuality, quality, b = Compress.compressRle(quality, Compress.Algorithm.SimpleRle), Compress.decompressRle(b, Compress.Algorithm.SimpleRle));
-            testAndAccumulate(rleAsciiQuality, quality, b = Compress.compressRle(quality, Compress.Algorithm.AsciiRle), Compress.decompressRle(b, Compress.Algorithm.AsciiRle));
+            if (null != checkpoint)
+                warn("No checkpoint was saved, but " + committed + " reads are committed; resuming from the committed reads");
         }
-        catch (DataFormatException e)
+        else if (checkpoint != saved)
         {
-            error("Decompression failed on sequence or quality score");
+            warn("Checkpoint records " + saved.getCount() + " reads but " + committed + " are committed; resuming from the committed reads");
         }
+
+        if (null == checkpoint)
+            getCheckpointFile().delete();
+
+        return checkpoint;
     }
 
 
-    private void testAndAccumulate(AtomicLong count, String source, byte[] compressed, String decompressed)
+    // Progress of a chunked import, saved next to the reads file after each commit
+    private static class ReadsCheckpoint
     {
-        if (!source.equals(decompressed))
-            warn("Roundtripping failed!");
+        private final int _run;
+        private final int _count;
+        private final String _lastRead;
 
-        count.addAndGet(compressed.length);
-    }
+        private ReadsCheckpoint(int run, int count, String lastRead)
+        {
+            _run = run;
+            _count = count;
+            _lastRead = lastRead;
+        }
+
+        // Commits and checkpoint writes aren't atomic together, so the committed reads have the final say: the saved
+        // checkpoint if it agrees with them, otherwise one made from them. Returns null if no reads are committed.
+        private static @Nullable ReadsCheckpoint reconcile(int run, @Nullable ReadsCheckpoint saved, int committed, @Nullable String lastCommitted)
+        {
+            if (0 == committed || null == lastCommitted)
+                return null;
+
+            if (null != saved && saved.getCount() == committed)
+                return saved;
+
+            return new ReadsCheckpoint(run, committed, lastCommitted);
+        }
+
+        private static @Nullable ReadsCheckpoint load(File file, int run)
+        {
+            if (!file.exists())
+                return null;
+
+            Properties props = new Properties();
 
+            try (Reader reader = Files.newBufferedReader(file.toPath(), StandardCharsets.UTF_8))
+            {
+                props.load(reader);
+
+                int checkpointRun = Integer.parseInt(props.getProperty("run"));
+                int count = Integer.parseInt(props.getProperty("count"));
+                String lastRead = props.getProperty("lastRead");
+
+                // A checkpoint left by a run that has since been deleted is of no use
+                return checkpointRun == run && null != lastRead ? new ReadsCheckpoint(run, count, lastRead) : null;
+            }
+            catch (IOException | NumberFormatException e)
+            {
+                return null;
+            }
+        }
+
+        private void save(File file) throws IOException
+        {
+            Properties props = new Properties();
+            props.setProperty("run", String.valueOf(_run));
+            props.setProperty("count", String.valueOf(_count));
+            props.setProperty("lastRead", _lastRead);
+
+            File temp = new File(file.getParentFile(), file.getName() + ".tmp");
+
+            try (Writer writer = Files.newBufferedWriter(temp.toPath(), StandardCharsets.UTF_8))
+            {
+                props.store(writer, null);
+            }
+
+            Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        }
+
+        public int getCount()
+        {
+            return _count;
+        }
 
-    private void logReadsProgress(String prefix, int count)
+        public String getLastRead()
+        {
+            return _lastRead;
+        }
+    }
+
+    public static class TestCase extends Assert
     {
-        String formattedCount = Formats.commaf0.format(count);
-        info(prefix + formattedCount + " reads imported");
-        setStatus(formattedCount + " READS");    // Doesn't actually work... we're in one big transaction, so this doesn't update.
+        @Test
+        public void testCrashBeforeFirstCheckpoint()
+        {
+            // The first chunk committed, but the attempt died before writing its checkpoint
+            ReadsCheckpoint checkpoint = ReadsCheckpoint.reconcile(7, null, 500, "READ500");
+            assertNotNull(checkpoint);
+            assertEquals(500, checkpoint.getCount());
+            assertEquals("READ500", checkpoint.getLastRead());
+        }
+
+        @Test
+        public void testCrashBeforeCheckpointUpdate()
+        {
+            // A later chunk committed, but the attempt died before updating the checkpoint
+            ReadsCheckpoint checkpoint = ReadsCheckpoint.reconcile(7, new ReadsCheckpoint(7, 400, "READ400"), 500, "READ500");
+            assertNotNull(checkpoint);
+            assertEquals(500, checkpoint.getCount());
+            assertEquals("READ500", checkpoint.getLastRead());
+        }
+
+        @Test
+        public void testReconcile()
+        {
+            ReadsCheckpoint saved = new ReadsCheckpoint(7, 500, "READ500");
+            assertSame(saved, ReadsCheckpoint.reconcile(7, saved, 500, "READ500"));
+            assertNull(ReadsCheckpoint.reconcile(7, saved, 0, null));
+            assertNull(ReadsCheckpoint.reconcile(7, null, 0, null));
+        }
+
+        @Test
+        public void testSaveAndLoad() throws IOException
+        {
+            File file = FileUtil.createTempFile("reads", ".checkpoint");
+
+            try
+            {
+                new ReadsCheckpoint(7, 500, "READ500").save(file);
+
+                ReadsCheckpoint loaded = ReadsCheckpoint.load(file, 7);
+                assertNotNull(loaded);
+                assertEquals(500, loaded.getCount());
+                assertEquals("READ500", loaded.getLastRead());
+
+                // A checkpoint left by another run is ignored
+                assertNull(ReadsCheckpoint.load(file, 8));
+            }
+            finally
+            {
+                file.delete();
+            }
+        }
     }
 }
@@ -18,30 +18,55 @@
 import org.jetbrains.annotations.Nullable;
 import org.junit.Assert;
 import org.junit.Test;
+import org.labkey.api.data.Container;
+import org.labkey.api.data.ContainerManager;
 import org.labkey.api.data.DbSchema;
+import org.labkey.api.data.DbScope;
+import org.labkey.api.data.SqlExecutor;
 import org.labkey.api.data.SqlSelector;
+import org.labkey.api.data.Table;
 import org.labkey.api.data.TableInfo;
 import org.labkey.api.data.TempTableInfo;
 import org.labkey.api.data.TempTableWriter;
+import org.labkey.api.data.dialect.SqlDialect;
 import org.labkey.api.pipeline.PipeRoot;
 import org.labkey.api.pipeline.PipelineJob;
+import org.labkey.api.pipeline.PipelineJobException;
 import org.labkey.api.reader.ColumnDescriptor;
 import org.labkey.api.reader.TabLoader;
+import org.labkey.api.security.User;
 import org.labkey.api.util.DateUtil;
 import org.labkey.api.util.FileUtil;
+import org.labkey.api.util.Formats;
+import org.labkey.api.util.GUID;
+import org.labkey.api.util.JunitUtil;
 import org.labkey.api.util.PageFlowUtil;
+import org.labkey.api.util.TestContext;
 import org.labkey.api.view.ActionURL;
 import org.labkey.api.view.JspTemplate;
 import org.labkey.api.view.NotFoundException;
 import org.labkey.api.view.ViewBackgroundInfo;
+import org.labkey.genotyping.sequences.AlleleLookup;
 import org.labkey.genotyping.sequences.SequenceDictionary;
 import org.labkey.genotyping.sequences.SequenceManager;
 
 import java.io.File;
 import java.io.IOException;
+import java.sql.Array;
 import java.sql.SQLException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 /**
  * User: adam
@@ -96,75 +121,82 @@ public void run()
             GenotypingSchema gs = GenotypingSchema.get();
             DbSchema schema = gs.getSchema();
             TempTableInfo matches = null;
+            SqlMatchesImporter importer = null;
 
             try
             {
                 setStatus("LOADING TEMP TABLES");
                 info("Loading matches temp table");
+                long phaseStart = System.currentTimeMillis();
                 matches = createTempTable(sourceMatches, null);
+                phaseStart = logPhase("Loading matches temp table", phaseStart);
 
-                QueryContext ctx = new QueryContext(schema, matches, gs.getReadsTable(), _analysis.getRun());
-                JspTemplate<QueryContext> jspQuery = new JspTemplate<>("/org/labkey/genotyping/view/mhcQuery.jsp", ctx);
-                String sql = jspQuery.render();
+                // mhcQuery groups the matches by read_name and joins them to reads on name
+                info("Indexing and analyzing matches temp table");
+                indexTempTable(matches);
+                phaseStart = logPhase("Indexing and analyzing matches temp table", phaseStart);
 
                 setStatus("IMPORTING RESULTS");
 
                 info("Executing query to join results");
                 info("Importing results");
                 SequenceDictionary dictionary = SequenceManager.get().getSequenceDictionary(getContainer(), _analysis.getSequenceDictionary());
-                final Map<String, Integer> sequences = SequenceManager.get().getSequences(getContainer(), getUser(), dictionary, _analysis.getSequencesView());
-
-                new SqlSelector(schema, sql).forEach(rs -> {
-                    Integer sampleId = (Integer)rs.getObject("sampleid");
-
-                    if (null != sampleId)
+                AlleleLookup sequences = SequenceManager.get().getSequences(getContainer(), getUser(), dictionary, _analysis.getSequencesView());
+                boolean inDatabase = "Database".equalsIgnoreCase(GenotypingModule.getPropertyValue(getContainer(), GenotypingModule.ANALYSIS_IMPORT_MODE));
+
+                if (inDatabase && !SqlMatchesImporter.isSupported(schema))
+                {
+                    info("Database analysis import requires PostgreSQL; importing in batches instead");
+                    inDatabase = false;
+                }
+
+                // Loads the dictionary once for the whole analysis; every sample shares it
+                if (inDatabase)
+                    importer = new SqlMatchesImporter(_analysis, sequences);
+
+                int threads = GenotypingModule.getIntPropertyValue(getContainer(), GenotypingModule.ANALYSIS_IMPORT_THREADS, 1);
+                Set<Integer> imported = getImportedSamples(_analysis.getRowId());
+                int matchCount;
+
+                // A retry of a partially imported analysis goes sample by sample even with one thread, so the samples
+                // committed by the earlier attempt are skipped instead of imported twice
+                if (threads > 1 || !imported.isEmpty())
+                {
+                    matchCount = importSamples(matches, sequences, importer, Math.max(threads, 1), imported);
+                }
+                else
+                {
+                    // One transaction, so a failed single pass leaves no partial samples behind for a retry to skip
+                    try (DbScope.Transaction transaction = schema.getScope().ensureTransaction())
                     {
-                        // Compute array of read row ids
-                        String readIdsString = rs.getString("ReadIds");
-                        String[] readArray = readIdsString.split(",");
-                        int[] readIds = new int[readArray.length];
-
-                        for (int i = 0; i < readArray.length; i++)
-                            readIds[i] = Integer.parseInt(readArray[i]);
-
-                        // Compute array of allele row ids and verify each is in the reference sequence dictionary
-                        String allelesString = rs.getString("alleles");
-                        String[] alleles = allelesString.split(",");
-                        int[] alleleIds = new int[alleles.length];
-
-                        for (int i = 0; i < alleles.length; i++)
-                        {
-                            String allele = alleles[i];
-                            Integer sequenceId = sequences.get(allele);
-
-                            if (null == sequenceId)
-                            {
-                                String view = _analysis.getSequencesView();
-                                throw new NotFoundException("Allele name \"" + allele + "\" not found in reference sequences dictionary " +
-                                        _analysis.getSequenceDictionary() + ", view \"" + (null != view ? view : "<default>") + "\"");
-                            }
-
-                            alleleIds[i] = sequenceId;
-                        }
-
-                        GenotypingManager.get().insertMatch(getUser(), _analysis, sampleId, rs, readIds, alleleIds);
+                        QueryContext ctx = new QueryContext(schema, matches, gs.getReadsTable(), _analysis.getRun());
+                        matchCount = importMatches(ctx, sequences, importer);
+                        transaction.commit();
                     }
-                });
+                }
+
+                info("Imported " + matchCount + " matches");
+                logPhase("Joining and importing results", phaseStart);
             }
             finally
             {
                 info("Deleting temporary tables");
 
-                // Drop the temp table
+                // Drop the temp tables
                 if (null != matches)
                     matches.delete();
+                if (null != importer)
+                    importer.close();
             }
 
             // Attempt to fix #11654
             setStatus("UPDATING STATISTICS");
             info("Updating matches table statistics");
+            long statisticsStart = System.currentTimeMillis();
             TableInfo matchesTable = gs.getMatchesTable();
             matchesTable.getSchema().getSqlDialect().updateStatistics(matchesTable);
+            logPhase("Updating matches table statistics", statisticsStart);
+            GenotypingManager.get().updateMatchCount(_analysis);
 
             if (!GenotypingManager.get().updateAnalysisStatus(_analysis, getUser(), Status.Importing, Status.Complete))
                 throw new IllegalStateException("Analysis status should be \"Importing\"");
@@ -179,6 +211,186 @@ public void run()
     }
 
 
+    // Imports the matches selected by ctx, inside the database if importer is provided; returns the number of matches imported
+    private int importMatches(QueryContext ctx, AlleleLookup sequences, @Nullable SqlMatchesImporter importer) throws Exception
+    {
+        JspTemplate<QueryContext> jspQuery = new JspTemplate<>("/org/labkey/genotyping/view/mhcQuery.jsp", ctx);
+        String sql = jspQuery.render();
+
+        if (null != importer)
+            return importer.importMatches(sql);
+
+        final MatchesWriter writer = new MatchesWriter(getUser(), _analysis, MatchesWriter.DEFAULT_BATCH_SIZE);
+
+        new SqlSelector(ctx.schema, sql).forEach(rs -> {
+            Integer sampleId = (Integer)rs.getObject("sampleid");
+
+            if (null != sampleId)
+            {
+                // PostgreSQL returns native arrays; other dialects return comma-separated lists
+                int[] readIds = ctx.arrays ? toIntArray(rs.getArray("ReadIds")) : parseIds(rs.getString("ReadIds"));
+                String[] alleles = ctx.arrays ? (String[])rs.getArray("alleles").getArray() : rs.getString("alleles").split(",");
+
+                // Compute array of allele row ids and verify each is in the reference sequence dictionary
+                int[] alleleIds = new int[alleles.length];
+
+                for (int i = 0; i < alleles.length; i++)
+                {
+                    String allele = alleles[i];
+                    int sequenceId = sequences.getRowId(allele);
+
+                    if (AlleleLookup.NOT_FOUND == sequenceId)
+                    {
+                        String view = _analysis.getSequencesView();
+                        throw new NotFoundException("Allele name \"" + allele + "\" not found in reference sequences dictionary " +
+                                _analysis.getSequenceDictionary() + ", view \"" + (null != view ? view : "<default>") + "\"");
+                    }
+
+                    alleleIds[i] = sequenceId;
+                }
+
+                writer.add(sampleId, rs, readIds, alleleIds);
+            }
+        });
+
+        writer.flush();
+
+        return writer.getCount();
+    }
+
+
+    // Imports each sample of the analysis separately on a pool of worker threads, each with its own connection and
+    // committing its own transaction, so a failure loses only that sample's matches. Samples that already have
+    // matches (imported, committed by an earlier attempt at this job) are skipped, so the job can be retried after
+    // fixing the failures. Throws if any sample failed.
+    private int importSamples(TempTableInfo matches, AlleleLookup sequences, @Nullable SqlMatchesImporter importer, int threads, Set<Integer> imported) throws PipelineJobException
+    {
+        GenotypingSchema gs = GenotypingSchema.get();
+        DbSchema schema = gs.getSchema();
+        List<Integer> sampleIds = getSamplesToImport(_analysis.getRowId(), imported);
+
+        if (!imported.isEmpty())
+            info("Skipping " + imported.size() + " samples imported by a previous attempt");
+
+        if (sampleIds.isEmpty())
+            return 0;
+
+        threads = Math.min(threads, sampleIds.size());
+        info("Importing " + sampleIds.size() + " samples using " + threads + " threads");
+
+        ExecutorService pool = Executors.newFixedThreadPool(threads, r -> {
+            Thread t = new Thread(r, "Genotyping analysis import");
+            t.setDaemon(true);
+            return t;
+        });
+        CompletionService<Integer> completionService = new ExecutorCompletionService<>(pool);
+        int matchCount = 0;
+        int failed = 0;
+
+        try
+        {
+            for (Integer sampleId : sampleIds)
+            {
+                completionService.submit(() -> {
+                    QueryContext ctx = new QueryContext(schema, matches, gs.getReadsTable(), _analysis.getRun(), sampleId);
+
+                    try
+                    {
+                        return importShard(schema.getScope(), () -> importMatches(ctx, sequences, importer));
+                    }
+                    catch (Exception e)
+                    {
+                        error("Importing sample " + sampleId + " failed", e);
+                        throw e;
+                    }
+                });
+            }
+
+            // Progress is reported from this thread only, as each sample completes
+            for (int completed = 1; completed <= sampleIds.size(); completed++)
+            {
+                setStatus("IMPORTING SAMPLE " + completed + " OF " + sampleIds.size());
+
+                try
+                {
+                    matchCount += completionService.take().get();
+                }
+                catch (ExecutionException e)
+                {
+                    failed++;
+                }
+                catch (InterruptedException e)
+                {
+                    Thread.currentThread().interrupt();
+                    throw new PipelineJobException(e);
+                }
+            }
+        }
+        finally
+        {
+            pool.shutdownNow();
+        }
+
+        if (failed > 0)
+            throw new PipelineJobException(failed + " of " + sampleIds.size() + " samples failed to import; " + Formats.commaf0.format(matchCount) +
+                    " matches from the other samples were committed. Retry the job to import the failed samples.");
+
+        return matchCount;
+    }
+
+
+    // Samples with matches committed by an earlier attempt at this job. Each sample commits in its own transaction
+    // (see importShard()), so a sample that failed partway has no matches and isn't included.
+    static Set<Integer> getImportedSamples(int analysisId)
+    {
+        GenotypingSchema gs = GenotypingSchema.get();
+        return new HashSet<>(new SqlSelector(gs.getSchema(), "SELECT DISTINCT SampleId FROM " + gs.getMatchesTable() + " WHERE Analysis = ?", analysisId).getArrayList(Integer.class));
+    }
+
+
+    // The analysis's samples that remain to be imported, in SampleId order
+    static List<Integer> getSamplesToImport(int analysisId, Set<Integer> imported)
+    {
+        GenotypingSchema gs = GenotypingSchema.get();
+        List<Integer> sampleIds = new SqlSelector(gs.getSchema(), "SELECT SampleId FROM " + gs.getAnalysisSamplesTable() + " WHERE Analysis = ? ORDER BY SampleId", analysisId).getArrayList(Integer.class);
+        sampleIds.removeAll(imported);
+
+        return sampleIds;
+    }
+
+
+    // Imports one sample in its own transaction, so a sample that fails partway leaves none of its matches behind
+    static int importShard(DbScope scope, Callable<Integer> shard) throws Exception
+    {
+        try (DbScope.Transaction transaction = scope.ensureTransaction())
+        {
+            int count = shard.call();
+            transaction.commit();
+            return count;
+        }
+    }
+
+
+    private long logPhase(String phase, long start)
+    {
+        long now = System.currentTimeMillis();
+        info(phase + " took " + DateUtil.formatDuration(now - start));
+        return now;
+    }
+
+
+    private void indexTempTable(TempTableInfo matches)
+    {
+        SqlDialect dialect = matches.getSqlDialect();
+
+        // PostgreSQL index names must be unique within the temp schema, so let it pick one; SQL Server's need only be
+        // unique per table
+        String name = dialect.isPostgreSQL() ? "" : "IX_read_name ";
+        new SqlExecutor(matches.getSchema()).execute("CREATE INDEX " + name + "ON " + matches.getSelectName() + " (read_name)");
+        dialect.updateStatistics(matches);
+    }
+
+
     // columnNames: comma-separated list of column names to include; null means include all columns
     private TempTableInfo createTempTable(File file, @Nullable String columnNames) throws IOException, SQLException
     {
@@ -198,23 +410,85 @@ private TempTableInfo createTempTable(File file, @Nullable String columnNames) t
         }
     }
 
+    private static int[] toIntArray(Array array) throws SQLException
+    {
+        Object[] values = (Object[])array.getArray();
+        int[] ids = new int[values.length];
+
+        for (int i = 0; i < values.length; i++)
+            ids[i] = ((Number)values[i]).intValue();
+
+        array.free();
+
+        return ids;
+    }
+
+
+    // Parses a comma-separated list of non-negative ints in one pass, without splitting it into millions of Strings
+    static int[] parseIds(String list)
+    {
+        int[] ids = new int[Math.max(16, list.length() / 8)];
+        int count = 0;
+        int value = 0;
+        boolean inNumber = false;
+
+        for (int i = 0; i <= list.length(); i++)
+        {
+            char c = i < list.length() ? list.charAt(i) : ',';
+
+            if (c >= '0' && c <= '9')
+            {
+                value = value * 10 + (c - '0');
+                inNumber = true;
+            }
+            else if (c == ',')
+            {
+                if (!inNumber)
+                    throw new NumberFormatException("Empty value in id list at position " + i);
+
+                if (count == ids.length)
+                    ids = Arrays.copyOf(ids, 2 * ids.length);
+
+                ids[count++] = value;
+                value = 0;
+                inNumber = false;
+            }
+            else if (!Character.isWhitespace(c))
+            {
+                throw new NumberFormatException("Unexpected character '" + c + "' in id list at position " + i);
+            }
+        }
+
+        return Arrays.copyOf(ids, count);
+    }
+
     public static class QueryContext
     {
         public final DbSchema schema;
         public final TableInfo matches;
         public final TableInfo reads;
         public final int run;
+        public final boolean arrays;     // Aggregate ReadIds and Alleles as native arrays instead of concatenated strings
+        public final @Nullable Integer sampleId;     // Restrict to a single sample; null means all samples in the run
 
         private QueryContext(DbSchema schema, TableInfo matches, TableInfo reads, int run)
+        {
+            this(schema, matches, reads, run, null);
+        }
+
+        private QueryContext(DbSchema schema, TableInfo matches, TableInfo reads, int run, @Nullable Integer sampleId)
         {
             this.schema = schema;
             this.matches = matches;
             this.reads = reads;
             this.run = run;
+            this.arrays = schema.getSqlDialect().isPostgreSQL();
+            this.sampleId = sampleId;
         }
     }
 
-    // Simple test that renders mhcQuery.jsp. Useful for validating JspTemplate and non-HTML JSP rendering.
+    // Renders mhcQuery.jsp, which is useful for validating JspTemplate and non-HTML JSP rendering, and checks that
+    // per-sample imports can be retried
     public static class TestCase extends Assert
     {
         @Test
@@ -228,5 +502,102 @@ public void testMhcQuery() throws Exception
             int length = sql.length();
             assertTrue("Unexpected length for SQL (" + sql.length() + "): " + sql, length > 1000 && length < 2000);
         }
+
+        @Test
+        public void testShardRetry() throws Exception
+        {
+            User user = TestContext.get().getUser();
+            Container c = ContainerManager.createContainer(JunitUtil.getTestContainer(), "ImportAnalysisJobTest " + GUID.makeHash());
+
+            try
+            {
+                GenotypingAnalysis analysis = createTestAnalysis(c, user, 1, 2, 3);
+                DbScope scope = GenotypingSchema.get().getSchema().getScope();
+
+                // Sample 1 commits; sample 2 fails after inserting one of its matches
+                assertEquals(1, importShard(scope, () -> insertTestMatch(analysis, 1)));
+
+                try
+                {
+                    importShard(scope, () -> {
+                        insertTestMatch(analysis, 2);
+                        throw new IllegalStateException("Simulated failure");
+                    });
+                    fail("Expected the shard to fail");
+                }
+                catch (IllegalStateException ignored)
+                {
+                }
+
+                // The failed sample's partial import was rolled back, so a retry imports it again
+                Set<Integer> imported = getImportedSamples(analysis.getRowId());
+                assertEquals(Collections.singleton(1), imported);
+                assertEquals(Arrays.asList(2, 3), getSamplesToImport(analysis.getRowId(), imported));
+
+                // Once the retry completes the remaining samples, a further retry has nothing left to import
+                for (int sampleId : getSamplesToImport(analysis.getRowId(), imported))
+                    assertEquals(1, importShard(scope, () -> insertTestMatch(analysis, sampleId)));
+
+                imported = getImportedSamples(analysis.getRowId());
+                assertEquals(PageFlowUtil.set(1, 2, 3), imported);
+                assertTrue(getSamplesToImport(analysis.getRowId(), imported).isEmpty());
+            }
+            finally
+            {
+                ContainerManager.delete(c, user);
+            }
+        }
+
+        private GenotypingAnalysis createTestAnalysis(Container c, User user, Integer... sampleIds)
+        {
+            GenotypingSchema gs = GenotypingSchema.get();
+            Map<String, Object> dictionary = new HashMap<>();
+            dictionary.put("container", c);
+            Table.insert(user, gs.getDictionariesTable(), dictionary);
+
+            GenotypingRun run = GenotypingManager.get().createRun(c, user, null, new File(FileUtil.getTempDirectory(), "reads.txt"), GenotypingManager.SEQUENCE_PLATFORMS.LS454.name());
+            GenotypingAnalysis analysis = GenotypingManager.get().createAnalysis(c, user, run, "Shard retry test", null);
+
+            for (Integer sampleId : sampleIds)
+                new SqlExecutor(gs.getSchema()).execute("INSERT INTO " + gs.getAnalysisSamplesTable() + " (Analysis, SampleId) VALUES (?, ?)", analysis.getRowId(), sampleId);
+
+            return analysis;
+        }
+
+        private int insertTestMatch(GenotypingAnalysis analysis, int sampleId)
+        {
+            GenotypingSchema gs = GenotypingSchema.get();
+            String percent = gs.getSchema().getSqlDialect().getColumnSelectName("Percent");
+
+            return new SqlExecutor(gs.getSchema()).execute("INSERT INTO " + gs.getMatchesTable() + " (Analysis, SampleId, Reads, " + percent +
+                    ", AverageLength, PosReads, NegReads, PosExtReads, NegExtReads) VALUES (?, ?, 1, 1.0, 100.0, 1, 0, 0, 0)", analysis.getRowId(), sampleId);
+        }
+
+        @Test
+        public void testParseIds()
+        {
+            assertArrayEquals(new int[]{1, 22, 333}, parseIds("1,22,333"));
+            assertArrayEquals(new int[]{7}, parseIds("7"));
+            assertArrayEquals(new int[]{4, 5}, parseIds("4, 5"));
+
+            StringBuilder sb = new StringBuilder();
+            for (int i = 0; i < 1000; i++)
+                sb.append(i).append(',');
+            int[] ids = parseIds(sb.substring(0, sb.length() - 1));
+            assertEquals(1000, ids.length);
+            assertEquals(999, ids[999]);
+
+            for (String bad : new String[]{"", "1,,2", "1,x"})
+            {
+                try
+                {
+                    parseIds(bad);
+                    fail("Expected NumberFormatException for \"" + bad + "\"");
+                }
+                catch (NumberFormatException ignored)
+                {
+                }
+            }
+        }
     }
 }
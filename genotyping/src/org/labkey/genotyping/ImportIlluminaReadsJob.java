@@ -106,8 +106,8 @@ public void run()
         {
             error("Processing Illumina reads failed", e);
             setStatus(TaskStatus.error);
-            info("Deleting run " + _run.getRowId());
-            GenotypingManager.get().deleteRun(_run);
+            info("Deleting run " + _run.getRowId() + " in the background");
+            GenotypingPurger.get().queueRun(_run);
         }
     }
 
@@ -211,6 +211,14 @@ private void importReads() throws PipelineJobException, SQLException
                 //now bin the FASTQ files into 2 per sample
                 IlluminaFastqParser parser = new IlluminaFastqParser(FileUtil.getBaseName(_run.getFileName()), sampleIndexToIdMap, sampleIdToIndexMap, sampleNameToIdMap,
                         getLogger(), new ArrayList<>(_fastqFiles));
+                parser.setReadStrategy(FastqInput.ReadStrategy.fromString(GenotypingModule.getPropertyValue(getContainer(), GenotypingModule.FASTQ_READ_STRATEGY)),
+                        GenotypingModule.getIntPropertyValue(getContainer(), GenotypingModule.FASTQ_MIN_THROUGHPUT, FastqInput.DEFAULT_MIN_THROUGHPUT));
+                parser.setParallelism(GenotypingModule.getIntPropertyValue(getContainer(), GenotypingModule.FASTQ_PARSER_THREADS, 0));
+                parser.setValidationSampleSize(GenotypingModule.getIntPropertyValue(getContainer(), GenotypingModule.FASTQ_VALIDATION_SAMPLE_SIZE, 0));
+                int pruned = FastqStatisticsManager.get().prune(getContainer());
+                if (pruned > 0)
+                    info("Dropped recorded statistics of " + pruned + " FASTQ files that have since been moved, changed, or deleted");
+                parser.setStatisticsCache(getContainer(), getUser());
                 Map<Pair<Integer, Integer>, IlluminaFastqParser.FileInfo> fileMap = parser.parseFastqFiles(this);
 
                 info("Recording records for each FASTQ file");
@@ -250,6 +258,7 @@ private void importReads() throws PipelineJobException, SQLException
                     for (Map<String, Object> rowToInsert : listOfRows)
                         Table.insert(getUser(), sequenceFilesTable, rowToInsert);
 
+                    SampleReadStatistics.updateFromSequenceFiles(_run.getRowId());
                     transaction.commit();
                 }
             }
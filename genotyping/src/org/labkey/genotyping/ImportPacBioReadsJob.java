@@ -52,6 +52,11 @@
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 public class ImportPacBioReadsJob extends ReadsJob
 {
@@ -101,8 +106,8 @@ public void run()
         {
             error("Processing PacBio reads failed", e);
             setStatus(TaskStatus.error);
-            info("Deleting run " + _run.getRowId());
-            GenotypingManager.get().deleteRun(_run);
+            info("Deleting run " + _run.getRowId() + " in the background");
+            GenotypingPurger.get().queueRun(_run);
         }
     }
 
@@ -220,46 +225,121 @@ private void collectFastqFilesAsPools()
         }
     }
 
-    private void persistPacBioPoolRecords(Map<String, Integer> sampleNameSampleIdMap)
+    private void persistPacBioPoolRecords(Map<String, Integer> sampleNameSampleIdMap) throws PipelineJobException
     {
-        List<Map<String, Object>> listOfRows = new LinkedList<>();
+        // Resolve every file's sample up front, so a bad sample sheet fails before any files are read
+        List<PoolFile> poolFiles = new ArrayList<>();
+        for (PacBioPool pool : _pools)
+            for (File file : pool.getFastqFiles())
+                poolFiles.add(new PoolFile(pool.getPoolNum(), file, getSampleId(file, sampleNameSampleIdMap)));
 
-        for(PacBioPool pool : _pools)
-        {
-            Map<String, Object> row;
+        int pruned = FastqStatisticsManager.get().prune(getContainer());
+        if (pruned > 0)
+            info("Dropped recorded statistics of " + pruned + " FASTQ files that have since been moved, changed, or deleted");
 
-            int fileCount = 1;
-            info("Recording records for each FASTQ file in Pool " + pool.getPoolNum() + ".");
-            for (File file : pool.getFastqFiles())
-            {
-                Integer sampleId = getSampleId(file, sampleNameSampleIdMap);
-                Integer numReads = getNumReads(file, fileCount++, pool.getPoolNum());
+        countReads(poolFiles);
 
-                row = new CaseInsensitiveHashMap<>();
-                row.put("Run", _run.getRowId());
-                row.put("PoolNum", pool.getPoolNum());
-                row.put("SampleId", sampleId);
-                row.put("ReadCount", numReads);
+        info("Recording records for " + poolFiles.size() + " FASTQ files.");
+
+        TableInfo sequenceFilesTable = GenotypingSchema.get().getSequenceFilesTable();
+        DbScope scope = sequenceFilesTable.getSchema().getScope();
+
+        try (DbScope.Transaction transaction = scope.ensureTransaction())
+        {
+            for (PoolFile poolFile : poolFiles)
+            {
+                File file = poolFile.getFile();
                 ExpData data = ExperimentService.get().createData(getContainer(), new DataType("PacBio FASTQ File " + file.getName()));
                 data.setDataFileURI(file.toURI());
                 data.setName(file.getName());
                 data.save(getUser());
-                row.put("DataId", data.getRowId());
 
-                listOfRows.add(row);
+                Map<String, Object> row = new CaseInsensitiveHashMap<>();
+                row.put("Run", _run.getRowId());
+                row.put("PoolNum", poolFile.getPoolNum());
+                row.put("SampleId", poolFile.getSampleId());
+                row.put("ReadCount", poolFile.getReadCount().getCount());
+                row.put("DataId", data.getRowId());
+                Table.insert(getUser(), sequenceFilesTable, row);
             }
+
+            SampleReadStatistics.updateFromSequenceFiles(_run.getRowId());
+            transaction.commit();
         }
+    }
 
-        TableInfo sequenceFilesTable = GenotypingSchema.get().getSequenceFilesTable();
-        DbScope scope = sequenceFilesTable.getSchema().getScope();
+    // Counts the reads in every pool file, several files at a time. Progress is reported from this thread only.
+    private void countReads(List<PoolFile> poolFiles) throws PipelineJobException
+    {
+        if (poolFiles.isEmpty())
+            return;
+
+        int parallelism = GenotypingModule.getIntPropertyValue(getContainer(), GenotypingModule.FASTQ_PARSER_THREADS, 0);
+        if (parallelism < 1)
+            parallelism = Runtime.getRuntime().availableProcessors();
+
+        int threads = Math.min(parallelism, poolFiles.size());
+        ExecutorService pool = Executors.newFixedThreadPool(threads, r -> {
+            Thread t = new Thread(r, "PacBio FASTQ counter");
+            t.setDaemon(true);
+            return t;
+        });
+        CompletionService<PoolFile> completionService = new ExecutorCompletionService<>(pool);
+        List<String> unparseable = new ArrayList<>();
 
-        try (DbScope.Transaction transaction = scope.ensureTransaction())
+        try
         {
-            for (Map<String, Object> rowToInsert : listOfRows)
-                Table.insert(getUser(), sequenceFilesTable, rowToInsert);
+            if (threads > 1)
+                info("Counting reads in " + poolFiles.size() + " files using " + threads + " threads");
 
-            transaction.commit();
+            for (PoolFile poolFile : poolFiles)
+            {
+                completionService.submit(() -> {
+                    poolFile.setReadCount(countReads(poolFile.getFile(), poolFile.getPoolNum()));
+                    return poolFile;
+                });
+            }
+
+            for (int completed = 1; completed <= poolFiles.size(); completed++)
+            {
+                setStatus("PARSING FILE " + completed + " OF " + poolFiles.size());
+
+                PoolFile poolFile;
+
+                try
+                {
+                    poolFile = completionService.take().get();
+                }
+                catch (ExecutionException e)
+                {
+                    Throwable cause = e.getCause();
+
+                    if (cause instanceof PipelineJobException)
+                        throw (PipelineJobException) cause;
+                    if (cause instanceof RuntimeException)
+                        throw (RuntimeException) cause;
+
+                    throw new PipelineJobException(cause);
+                }
+                catch (InterruptedException e)
+                {
+                    Thread.currentThread().interrupt();
+                    throw new PipelineJobException(e);
+                }
+
+                if (!poolFile.getReadCount().isComplete())
+                    unparseable.add(poolFile.getFile().getName() + " (pool " + poolFile.getPoolNum() + ")");
+            }
+        }
+        finally
+        {
+            // Abandons any outstanding files if one of them failed
+            pool.shutdownNow();
         }
+
+        // Each failure is logged as it happens; summarize them, since the status is overwritten as files complete
+        if (!unparseable.isEmpty())
+            warn(unparseable.size() + " of " + poolFiles.size() + " files could not be parsed to the end, so their read counts may be inaccurate: " + String.join(", ", unparseable));
     }
 
     private int extractPoolNumFromDirectoryName(String dirName)
@@ -290,43 +370,132 @@ private int getSampleId(File file, Map<String, Integer> sampleNameSampleIdMap)
         return result;
     }
 
-    public Integer getNumReads(File fastqFile, int fileNum, int poolNum)
+    // Safe to call concurrently for different files; doesn't touch the job status
+    private ReadCount countReads(File fastqFile, int poolNum) throws PipelineJobException
     {
-        FastqReader reader = null;
         int totalReads = 0;
 
-        setStatus("PARSING FILE " + fileNum + " in Pool " + poolNum);
-
         if(fastqFile.length() == 0)
         {
             _logger.info("File " + fastqFile.getName() + " has no content to parse.");
-            return 0;
+            return new ReadCount(0, true);
+        }
+
+        FastqStatisticsManager.Fingerprint fingerprint;
+
+        try
+        {
+            fingerprint = FastqStatisticsManager.Fingerprint.of(fastqFile);
+        }
+        catch (IOException e)
+        {
+            throw new PipelineJobException(e);
+        }
+
+        FastqStatisticsManager.FastqStatistics statistics = FastqStatisticsManager.get().getStatistics(getContainer(), fingerprint);
+        if (null != statistics && statistics.getReadCount() <= Integer.MAX_VALUE)
+        {
+            _logger.info("Using read count recorded by an earlier import for file: " + fastqFile.getName());
+            return new ReadCount((int)statistics.getReadCount(), true);
         }
 
         _logger.info("Beginning to parse file: " + fastqFile.getName());
 
-        reader = new FastqReader(fastqFile);
-        while (reader.hasNext())
+        FastqInput.ReadStrategy readStrategy = FastqInput.ReadStrategy.fromString(GenotypingModule.getPropertyValue(getContainer(), GenotypingModule.FASTQ_READ_STRATEGY));
+        int minThroughput = GenotypingModule.getIntPropertyValue(getContainer(), GenotypingModule.FASTQ_MIN_THROUGHPUT, FastqInput.DEFAULT_MIN_THROUGHPUT);
+
+        try (FastqInput input = new FastqInput(fastqFile, readStrategy, minThroughput, FastqInput.DEFAULT_BUFFER_SIZE, getLogger());
+             FastqReader reader = input.createReader())
         {
-            try
+            while (reader.hasNext())
             {
-                FastqRecord fq = reader.next();
-                totalReads++;
-            }
-            catch(SAMException same)
-            {
-                setStatus("Error parsing " + fileNum + " in Pool " + poolNum + ". See Status.");
-                _logger.error("Error parsing " + fastqFile.getName() + " in Pool " + poolNum + ", read count may be inaccurate: " + same.getMessage());
-                reader.close();
-                return totalReads;
+                try
+                {
+                    FastqRecord fq = reader.next();
+                    totalReads++;
+                }
+                catch(SAMException same)
+                {
+                    _logger.error("Error parsing " + fastqFile.getName() + " in Pool " + poolNum + ", read count may be inaccurate: " + same.getMessage());
+                    return new ReadCount(totalReads, false);
+                }
             }
         }
+        catch (IOException e)
+        {
+            throw new PipelineJobException(e);
+        }
 
         _logger.info("Finished parsing file: " + fastqFile.getName());
 
-        reader.close();
+        // Partial counts from unparseable files are deliberately not recorded
+        FastqStatisticsManager.get().saveStatistics(getContainer(), getUser(), fingerprint, new FastqStatisticsManager.FastqStatistics(totalReads, null, null, null));
+
+        return new ReadCount(totalReads, true);
+    }
+
+    // Reads counted in a file; incomplete if the file couldn't be parsed to the end
+    private static class ReadCount
+    {
+        private final int _count;
+        private final boolean _complete;
+
+        private ReadCount(int count, boolean complete)
+        {
+            _count = count;
+            _complete = complete;
+        }
+
+        public int getCount()
+        {
+            return _count;
+        }
+
+        public boolean isComplete()
+        {
+            return _complete;
+        }
+    }
+
+    // A pool's FASTQ file, with its sample and (once counted) its read count
+    private static class PoolFile
+    {
+        private final int _poolNum;
+        private final File _file;
+        private final int _sampleId;
+        private ReadCount _readCount;
 
-        return totalReads;
+        private PoolFile(int poolNum, File file, int sampleId)
+        {
+            _poolNum = poolNum;
+            _file = file;
+            _sampleId = sampleId;
+        }
+
+        public int getPoolNum()
+        {
+            return _poolNum;
+        }
+
+        public File getFile()
+        {
+            return _file;
+        }
+
+        public int getSampleId()
+        {
+            return _sampleId;
+        }
+
+        public ReadCount getReadCount()
+        {
+            return _readCount;
+        }
+
+        public void setReadCount(ReadCount readCount)
+        {
+            _readCount = readCount;
+        }
     }
 
     class PacBioPool
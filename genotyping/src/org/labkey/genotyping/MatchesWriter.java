@@ -0,0 +1,141 @@
+/*
+ * Copyright (c) 2026 LabKey Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.labkey.genotyping;
+
+import org.labkey.api.data.DbSchema;
+import org.labkey.api.data.SqlSelector;
+import org.labkey.api.data.Table;
+import org.labkey.api.data.TableInfo;
+import org.labkey.api.security.User;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedList;
+import java.util.List;
+
+/**
+ * Batched equivalent of GenotypingManager.insertMatch(). Matches, AllelesJunction rows and ReadsJunction rows are
+ * buffered and sent as JDBC batches, so an analysis with millions of junction rows doesn't make millions of round
+ * trips. On PostgreSQL, match RowIds are allocated from the Matches sequence a batch at a time, which lets the
+ * matches themselves be batched too; on SQL Server (identity column) each match is still inserted individually to
+ * learn its RowId. Callers must flush() when done.
+ */
+public class MatchesWriter
+{
+    public static final int DEFAULT_BATCH_SIZE = 1000;
+
+    private final User _user;
+    private final int _analysisId;
+    private final int _batchSize;
+    private final DbSchema _schema;
+    private final TableInfo _matchesTable;
+    private final String _matchesSql;
+    private final String _allelesSql;
+    private final String _readsSql;
+    private final boolean _allocateIds;
+
+    private final LinkedList<Integer> _ids = new LinkedList<>();
+    private final List<List<?>> _matches;
+    private final List<List<?>> _alleles;
+    private final List<List<?>> _reads;
+
+    private int _count = 0;
+
+    public MatchesWriter(User user, GenotypingAnalysis analysis, int batchSize)
+    {
+        GenotypingSchema gs = GenotypingSchema.get();
+
+        _user = user;
+        _analysisId = analysis.getRowId();
+        _batchSize = batchSize > 0 ? batchSize : DEFAULT_BATCH_SIZE;
+        _schema = gs.getSchema();
+        _matchesTable = gs.getMatchesTable();
+        _matchesSql = "INSERT INTO " + _matchesTable + " (RowId, Analysis, SampleId, Reads, Percent, AverageLength, PosReads, NegReads, PosExtReads, NegExtReads) VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?)";
+        _allelesSql = "INSERT INTO " + gs.getAllelesJunctionTable() + " (Analysis, MatchId, SequenceId) VALUES (?, ?, ?)";
+        _readsSql = "INSERT INTO " + gs.getReadsJunctionTable() + " (MatchId, ReadId) VALUES (?, ?)";
+        _allocateIds = _schema.getSqlDialect().isPostgreSQL();
+        _matches = new ArrayList<>(_batchSize);
+        _alleles = new ArrayList<>(_batchSize);
+        _reads = new ArrayList<>(_batchSize);
+    }
+
+    /** Reads the match statistics from the current row of rs; returns the new match's RowId */
+    public int add(int sampleId, ResultSet rs, int[] readIds, int[] alleleIds) throws SQLException
+    {
+        int matchId;
+
+        if (_allocateIds)
+        {
+            matchId = nextId();
+            _matches.add(Arrays.asList(matchId, _analysisId, sampleId, rs.getInt("reads"), rs.getFloat("percent"), rs.getFloat("avg_length"),
+                    rs.getInt("pos_reads"), rs.getInt("neg_reads"), rs.getInt("pos_ext_reads"), rs.getInt("neg_ext_reads")));
+        }
+        else
+        {
+            matchId = GenotypingManager.get().insertMatch(_user, _analysisId, sampleId, rs);
+        }
+
+        for (int alleleId : alleleIds)
+            _alleles.add(Arrays.asList(_analysisId, matchId, alleleId));
+
+        for (int readId : readIds)
+            _reads.add(Arrays.asList(matchId, readId));
+
+        _count++;
+
+        if (_matches.size() >= _batchSize || _alleles.size() >= _batchSize || _reads.size() >= _batchSize)
+            flush();
+
+        return matchId;
+    }
+
+    // Pre-allocate a batch of RowIds from the Matches sequence in one round trip
+    private int nextId()
+    {
+        if (_ids.isEmpty())
+        {
+            for (Long id : new SqlSelector(_schema, "SELECT nextval(pg_get_serial_sequence(?, 'rowid')) FROM generate_series(1, ?)", _matchesTable.getSelectName(), _batchSize).getArrayList(Long.class))
+                _ids.add(id.intValue());
+        }
+
+        return _ids.removeFirst();
+    }
+
+    /** Sends any buffered rows to the database. Matches go first, since the junction rows reference them. */
+    public void flush()
+    {
+        execute(_matchesSql, _matches);
+        execute(_allelesSql, _alleles);
+        execute(_readsSql, _reads);
+    }
+
+    private void execute(String sql, List<List<?>> batch)
+    {
+        if (batch.isEmpty())
+            return;
+
+        Table.batchExecute(_schema, sql, batch);
+        batch.clear();
+    }
+
+    /** Number of matches added, including any not yet flushed */
+    public int getCount()
+    {
+        return _count;
+    }
+}
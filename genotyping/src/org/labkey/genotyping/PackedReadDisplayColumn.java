@@ -0,0 +1,74 @@
+/*
+ * Copyright (c) 2026 LabKey Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.labkey.genotyping;
+
+import org.jetbrains.annotations.NotNull;
+import org.labkey.api.data.ColumnInfo;
+import org.labkey.api.data.DataColumn;
+import org.labkey.api.data.RenderContext;
+import org.labkey.api.query.FieldKey;
+import org.labkey.genotyping.sequences.ReadsCodec;
+
+import java.util.Set;
+
+/**
+ * Renders a read's Sequence or Quality column, decoding the packed column instead when the read was imported with
+ * packed storage and the text column is null.
+ */
+public class PackedReadDisplayColumn extends DataColumn
+{
+    private final boolean _quality;
+
+    public PackedReadDisplayColumn(@NotNull ColumnInfo col, boolean quality)
+    {
+        super(col);
+        _quality = quality;
+    }
+
+    @Override
+    public void addQueryFieldKeys(Set<FieldKey> keys)
+    {
+        super.addQueryFieldKeys(keys);
+        keys.add(getPackedFieldKey());
+    }
+
+    private FieldKey getPackedFieldKey()
+    {
+        return new FieldKey(getBoundColumn().getFieldKey().getParent(), _quality ? "PackedQuality" : "PackedSequence");
+    }
+
+    @Override
+    public Object getValue(RenderContext ctx)
+    {
+        Object value = super.getValue(ctx);
+
+        if (null != value)
+            return value;
+
+        Object packed = ctx.get(getPackedFieldKey());
+
+        if (!(packed instanceof byte[]))
+            return null;
+
+        return _quality ? ReadsCodec.decodeQuality((byte[])packed) : ReadsCodec.decodeSequence((byte[])packed);
+    }
+
+    @Override
+    public Object getDisplayValue(RenderContext ctx)
+    {
+        return getValue(ctx);
+    }
+}
@@ -0,0 +1,432 @@
+/*
+ * Copyright (c) 2026 LabKey Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.labkey.genotyping;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.Random;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Inflates a BGZF (blocked gzip) stream with many blocks in flight at once. BGZF blocks are independent gzip members
+ * of at most 64KB whose compressed size is recorded in the header, so they can be split without inflating: the
+ * consumer reads block after block from the underlying stream, hands each to a shared pool of inflater threads and
+ * returns the inflated blocks in file order. Up to MAX_PENDING_BLOCKS blocks are queued ahead of the consumer.
+ */
+class ParallelBgzfInputStream extends InputStream
+{
+    private static final int THREADS = Math.max(1, Runtime.getRuntime().availableProcessors());
+    private static final int MAX_PENDING_BLOCKS = 4 * THREADS;
+    private static final int FIXED_HEADER_LENGTH = 12;     // Through XLEN, before the extra subfields
+    private static final int TRAILER_LENGTH = 8;
+
+    // Shared by all open streams, so concurrent file parsing doesn't multiply the inflater threads
+    private static final ExecutorService POOL = Executors.newFixedThreadPool(THREADS, r -> {
+        Thread t = new Thread(r, "BGZF inflater");
+        t.setDaemon(true);
+        return t;
+    });
+
+    private final InputStream _in;
+    private final Deque<Future<byte[]>> _pending = new ArrayDeque<>();
+
+    private byte[] _current = null;
+    private int _position = 0;
+    private boolean _eof = false;     // No more blocks in the underlying stream
+
+    ParallelBgzfInputStream(InputStream in)
+    {
+        _in = in;
+    }
+
+    /** Sniffs the first block's header, leaving the stream where it was. Other extra subfields may precede BC. */
+    static boolean isBgzf(BufferedInputStream in) throws IOException
+    {
+        in.mark(FIXED_HEADER_LENGTH + 0xffff);
+
+        try
+        {
+            byte[] header = in.readNBytes(FIXED_HEADER_LENGTH);
+
+            if (header.length < FIXED_HEADER_LENGTH || (header[0] & 0xff) != 31 || (header[1] & 0xff) != 139 || header[2] != 8 || (header[3] & 4) == 0)
+                return false;
+
+            int extraLength = readShort(header, 10);
+            byte[] extra = in.readNBytes(extraLength);
+
+            if (extra.length < extraLength)
+                return false;
+
+            findBlockSize(extra);
+            return true;
+        }
+        catch (IOException e)
+        {
+            return false;
+        }
+        finally
+        {
+            in.reset();
+        }
+    }
+
+    // Reads blocks from the underlying stream and queues them for inflation until the queue is full
+    private void fillPending() throws IOException
+    {
+        while (!_eof && _pending.size() < MAX_PENDING_BLOCKS)
+        {
+            byte[] block = readBlock();
+
+            if (null == block)
+                _eof = true;
+            else
+                _pending.add(POOL.submit(() -> inflate(block)));
+        }
+    }
+
+    // Returns the next whole block, header through trailer, or null at the end of the stream
+    private byte[] readBlock() throws IOException
+    {
+        byte[] header = new byte[FIXED_HEADER_LENGTH];
+        int read = _in.readNBytes(header, 0, FIXED_HEADER_LENGTH);
+
+        if (0 == read)
+            return null;
+
+        if (read < FIXED_HEADER_LENGTH)
+            throw new EOFException("Truncated BGZF block header");
+
+        // ID1, ID2, CM (deflate), FLG (FEXTRA), ..., XLEN, the length of the extra subfields
+        if ((header[0] & 0xff) != 31 || (header[1] & 0xff) != 139 || header[2] != 8 || (header[3] & 4) == 0)
+            throw new IOException("Invalid BGZF block header");
+
+        int extraLength = readShort(header, 10);
+        byte[] extra = new byte[extraLength];
+
+        if (_in.readNBytes(extra, 0, extraLength) < extraLength)
+            throw new EOFException("Truncated BGZF block header");
+
+        int headerLength = FIXED_HEADER_LENGTH + extraLength;
+        int blockSize = findBlockSize(extra) + 1;
+
+        if (blockSize < headerLength + TRAILER_LENGTH)
+            throw new IOException("Invalid BGZF block size " + blockSize);
+
+        byte[] block = Arrays.copyOf(header, blockSize);
+        System.arraycopy(extra, 0, block, FIXED_HEADER_LENGTH, extraLength);
+
+        if (_in.readNBytes(block, headerLength, blockSize - headerLength) < blockSize - headerLength)
+            throw new EOFException("Truncated BGZF block");
+
+        return block;
+    }
+
+    // Walks the extra subfields (SI1, SI2, SLEN, then SLEN bytes of data) for BC, whose data is BSIZE, the total block
+    // size minus one. The spec allows other subfields before or after it.
+    static int findBlockSize(byte[] extra) throws IOException
+    {
+        int offset = 0;
+
+        while (offset + 4 <= extra.length)
+        {
+            int length = readShort(extra, offset + 2);
+
+            if (offset + 4 + length > extra.length)
+                break;
+
+            if (extra[offset] == 'B' && extra[offset + 1] == 'C' && length == 2)
+                return readShort(extra, offset + 4);
+
+            offset += 4 + length;
+        }
+
+        throw new IOException("Invalid BGZF block header: no BC subfield");
+    }
+
+    static byte[] inflate(byte[] block) throws IOException
+    {
+        int headerLength = FIXED_HEADER_LENGTH + readShort(block, 10);
+        int trailer = block.length - TRAILER_LENGTH;
+        byte[] inflated = new byte[readInt(block, trailer + 4)];
+        Inflater inflater = new Inflater(true);
+
+        try
+        {
+            inflater.setInput(block, headerLength, trailer - headerLength);
+            int length = 0;
+
+            while (length < inflated.length && !inflater.finished())
+            {
+                int count = inflater.inflate(inflated, length, inflated.length - length);
+
+                if (0 == count && (inflater.needsInput() || inflater.needsDictionary()))
+                    break;
+
+                length += count;
+            }
+
+            if (length != inflated.length)
+                throw new IOException("BGZF block inflated to " + length + " bytes; expected " + inflated.length);
+        }
+        catch (DataFormatException e)
+        {
+            throw new IOException("Corrupt BGZF block", e);
+        }
+        finally
+        {
+            inflater.end();
+        }
+
+        CRC32 crc = new CRC32();
+        crc.update(inflated);
+
+        if ((int)crc.getValue() != readInt(block, trailer))
+            throw new IOException("BGZF block CRC mismatch");
+
+        return inflated;
+    }
+
+    private boolean ensureBlock() throws IOException
+    {
+        while (null == _current || _position >= _current.length)
+        {
+            fillPending();
+
+            if (_pending.isEmpty())
+                return false;
+
+            try
+            {
+                _current = _pending.remove().get();
+            }
+            catch (InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while inflating", e);
+            }
+            catch (ExecutionException e)
+            {
+                if (e.getCause() instanceof IOException)
+                    throw (IOException)e.getCause();
+
+                throw new IOException(e.getCause());
+            }
+
+            // Empty blocks, e.g., the BGZF end-of-file marker, are skipped
+            _position = 0;
+        }
+
+        return true;
+    }
+
+    @Override
+    public int read() throws IOException
+    {
+        if (!ensureBlock())
+            return -1;
+
+        return _current[_position++] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException
+    {
+        if (len == 0)
+            return 0;
+
+        if (!ensureBlock())
+            return -1;
+
+        int count = Math.min(len, _current.length - _position);
+        System.arraycopy(_current, _position, b, off, count);
+        _position += count;
+
+        return count;
+    }
+
+    @Override
+    public int available()
+    {
+        return null == _current ? 0 : _current.length - _position;
+    }
+
+    @Override
+    public void close() throws IOException
+    {
+        for (Future<byte[]> future : _pending)
+            future.cancel(false);
+
+        _pending.clear();
+        _in.close();
+    }
+
+    private static int readShort(byte[] bytes, int offset)
+    {
+        return (bytes[offset] & 0xff) | (bytes[offset + 1] & 0xff) << 8;
+    }
+
+    private static int readInt(byte[] bytes, int offset)
+    {
+        return readShort(bytes, offset) | readShort(bytes, offset + 2) << 16;
+    }
+
+    public static class TestCase extends Assert
+    {
+        // Header with just the BC subfield, as bgzip writes it
+        private static final int HEADER_LENGTH = 18;
+
+        private static byte[] bgzip(byte[] data, int blockLength)
+        {
+            return bgzip(data, blockLength, new byte[0]);
+        }
+
+        // Writes data as BGZF blocks of at most blockLength uncompressed bytes, followed by the empty EOF block. Each
+        // header carries the given extra subfields ahead of BC.
+        private static byte[] bgzip(byte[] data, int blockLength, byte[] subfields)
+        {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+            for (int offset = 0; offset <= data.length; offset += blockLength)
+            {
+                int length = Math.min(blockLength, data.length - offset);
+                Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+                deflater.setInput(data, offset, length);
+                deflater.finish();
+                byte[] compressed = new byte[length + 1024];
+                int compressedLength = deflater.deflate(compressed);
+                deflater.end();
+
+                CRC32 crc = new CRC32();
+                crc.update(data, offset, length);
+                int extraLength = subfields.length + 6;
+                int blockSize = FIXED_HEADER_LENGTH + extraLength + compressedLength + TRAILER_LENGTH;
+
+                out.writeBytes(new byte[]{31, (byte)139, 8, 4, 0, 0, 0, 0, 0, (byte)255, (byte)extraLength, (byte)(extraLength >> 8)});
+                out.writeBytes(subfields);
+                out.writeBytes(new byte[]{'B', 'C', 2, 0, (byte)(blockSize - 1), (byte)((blockSize - 1) >> 8)});
+                out.write(compressed, 0, compressedLength);
+                writeInt(out, (int)crc.getValue());
+                writeInt(out, length);
+
+                if (0 == length)
+                    break;
+            }
+
+            return out.toByteArray();
+        }
+
+        private static void writeInt(ByteArrayOutputStream out, int value)
+        {
+            for (int i = 0; i < 4; i++)
+                out.write(value >> (8 * i));
+        }
+
+        @Test
+        public void testRoundTrip() throws IOException
+        {
+            // Many more blocks than threads, so blocks complete out of order and must be reassembled
+            byte[] data = new byte[5_000_000];
+            Random random = new Random(42);
+            for (int i = 0; i < data.length; i++)
+                data[i] = (byte)"ACGT\n".charAt(random.nextInt(5));
+
+            try (InputStream in = new ParallelBgzfInputStream(new ByteArrayInputStream(bgzip(data, 60000))))
+            {
+                assertArrayEquals(data, in.readAllBytes());
+            }
+        }
+
+        @Test
+        public void testExtraSubfields() throws IOException
+        {
+            // Another subfield ahead of BC, as the spec allows, so BC is neither first nor the only one
+            byte[] data = "@read1\nACGT\n+\nIIII\n@read2\nTTGA\n+\nHHHH\n".getBytes();
+            byte[] subfields = {'X', 'Y', 3, 0, 1, 2, 3};
+
+            try (InputStream in = new ParallelBgzfInputStream(new ByteArrayInputStream(bgzip(data, 20, subfields))))
+            {
+                assertArrayEquals(data, in.readAllBytes());
+            }
+        }
+
+        @Test
+        public void testIsBgzf() throws IOException
+        {
+            byte[] bgzf = bgzip("@read1\nACGT\n+\nIIII\n".getBytes(), 60000, new byte[]{'X', 'Y', 0, 0});
+            BufferedInputStream in = new BufferedInputStream(new ByteArrayInputStream(bgzf));
+            assertTrue(isBgzf(in));
+            assertEquals(31, in.read());
+
+            // Plain gzip: FEXTRA not set
+            assertFalse(isBgzf(new BufferedInputStream(new ByteArrayInputStream(new byte[]{31, (byte)139, 8, 0, 0, 0, 0, 0, 0, (byte)255, 3, 0}))));
+        }
+
+        @Test(expected = IOException.class)
+        public void testMissingBlockSize() throws IOException
+        {
+            findBlockSize(new byte[]{'X', 'Y', 2, 0, 1, 2});
+        }
+
+        @Test
+        public void testEmpty() throws IOException
+        {
+            try (InputStream in = new ParallelBgzfInputStream(new ByteArrayInputStream(bgzip(new byte[0], 60000))))
+            {
+                assertEquals(-1, in.read());
+            }
+        }
+
+        @Test(expected = IOException.class)
+        public void testCorruptBlock() throws IOException
+        {
+            byte[] bgzf = bgzip("@read1\nACGT\n+\nIIII\n".getBytes(), 60000);
+            bgzf[HEADER_LENGTH + 2] ^= 0x55;
+
+            try (InputStream in = new ParallelBgzfInputStream(new ByteArrayInputStream(bgzf)))
+            {
+                in.readAllBytes();
+            }
+        }
+
+        @Test(expected = EOFException.class)
+        public void testTruncated() throws IOException
+        {
+            byte[] bgzf = bgzip("@read1\nACGT\n+\nIIII\n".getBytes(), 60000);
+
+            try (InputStream in = new ParallelBgzfInputStream(new ByteArrayInputStream(Arrays.copyOf(bgzf, bgzf.length - 40))))
+            {
+                in.readAllBytes();
+            }
+        }
+    }
+}
@@ -0,0 +1,205 @@
+/*
+ * Copyright (c) 2026 LabKey Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.labkey.genotyping;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Writes the tab-separated reads file sent to Galaxy (name, sample, sequence, quality). Columns are appended as
+ * bytes straight into one large reusable buffer, which is written to a FileChannel when full, so no per-row Strings,
+ * PrintWriter encoding or small writes are involved. ASCII is copied directly; any other character switches that
+ * value to a UTF-8 CharsetEncoder, matching the TSVWriter this replaced. Optionally gzips the output.
+ */
+public class ReadsFileWriter implements Closeable
+{
+    private static final int BUFFER_SIZE = 4 * 1024 * 1024;
+
+    private final FileChannel _channel;
+    private final ByteBuffer _buffer;
+    private final byte[] _digits = new byte[11];
+    private final GZIPOutputStream _gzip;
+    private final CharsetEncoder _encoder = StandardCharsets.UTF_8.newEncoder();   // Reports unpaired surrogates
+
+    private long _rows = 0;
+    private long _bytes = 0;
+    private boolean _closed = false;
+
+    public ReadsFileWriter(File file, boolean gzip) throws IOException
+    {
+        _channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+
+        if (gzip)
+        {
+            // GZIPOutputStream needs a heap array
+            OutputStream out = Channels.newOutputStream(_channel);
+            _gzip = new GZIPOutputStream(out, 256 * 1024);
+            _buffer = ByteBuffer.allocate(BUFFER_SIZE);
+        }
+        else
+        {
+            _gzip = null;
+            _buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+        }
+
+        append("name\tsample\tsequence\tquality\n");
+    }
+
+    public void writeRow(String name, int sampleId, String sequence, String quality) throws IOException
+    {
+        append(name);
+        append('\t');
+        append(sampleId);
+        append('\t');
+        append(sequence);
+        append('\t');
+        append(quality);
+        append('\n');
+        _rows++;
+    }
+
+    private void append(String s) throws IOException
+    {
+        int length = s.length();
+
+        for (int i = 0; i < length; i++)
+        {
+            if (!_buffer.hasRemaining())
+                drain();
+
+            char c = s.charAt(i);
+
+            if (c >= 128)
+            {
+                appendEncoded(s, i);
+                return;
+            }
+
+            _buffer.put((byte)c);
+        }
+    }
+
+    // Encodes the rest of s, starting at the first non-ASCII character, as UTF-8
+    private void appendEncoded(String s, int start) throws IOException
+    {
+        CharBuffer chars = CharBuffer.wrap(s, start, s.length());
+        _encoder.reset();
+
+        CoderResult result;
+
+        while ((result = _encoder.encode(chars, _buffer, true)).isOverflow())
+            drain();
+
+        if (result.isError())
+            result.throwException();
+
+        while (_encoder.flush(_buffer).isOverflow())
+            drain();
+    }
+
+    private void append(char c) throws IOException
+    {
+        if (!_buffer.hasRemaining())
+            drain();
+
+        _buffer.put((byte)c);
+    }
+
+    private void append(int value) throws IOException
+    {
+        if (value < 0)
+        {
+            append(String.valueOf(value));
+            return;
+        }
+
+        int position = _digits.length;
+
+        do
+        {
+            _digits[--position] = (byte)('0' + value % 10);
+            value /= 10;
+        }
+        while (value > 0);
+
+        if (_buffer.remaining() < _digits.length - position)
+            drain();
+
+        _buffer.put(_digits, position, _digits.length - position);
+    }
+
+    private void drain() throws IOException
+    {
+        _buffer.flip();
+        _bytes += _buffer.remaining();
+
+        if (null != _gzip)
+        {
+            _gzip.write(_buffer.array(), 0, _buffer.limit());
+        }
+        else
+        {
+            while (_buffer.hasRemaining())
+                _channel.write(_buffer);
+        }
+
+        _buffer.clear();
+    }
+
+    /** Rows written, excluding the header */
+    public long getRows()
+    {
+        return _rows;
+    }
+
+    /** Uncompressed bytes written so far, including the header */
+    public long getBytes()
+    {
+        return _bytes + _buffer.position();
+    }
+
+    @Override
+    public void close() throws IOException
+    {
+        if (_closed)
+            return;
+
+        _closed = true;
+
+        try
+        {
+            drain();
+
+            if (null != _gzip)
+                _gzip.close();
+        }
+        finally
+        {
+            _channel.close();
+        }
+    }
+}
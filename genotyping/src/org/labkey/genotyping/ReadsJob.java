@@ -18,6 +18,7 @@
 import jakarta.mail.MessagingException;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
+import org.labkey.api.data.CompareType;
 import org.labkey.api.data.DbScope;
 import org.labkey.api.data.RuntimeSQLException;
 import org.labkey.api.data.SimpleFilter;
@@ -74,6 +75,8 @@ public void updateRunStatus(Status status)
         // Issue 14880: if a job has run and failed, we will have deleted the run.  trying to update the status of this non-existent row
         // causes an OptimisticConflictException.  therefore we first test whether the runs exists
         SimpleFilter f = new SimpleFilter(FieldKey.fromParts("rowid"), _run.getRowId());
+        // A run queued for deletion is as good as gone
+        f.addCondition(FieldKey.fromParts("Status"), Status.Deleting.getStatusId(), CompareType.NEQ_OR_NULL);
 
         if (!new TableSelector(GenotypingSchema.get().getRunsTable(), Collections.singleton("RowId"), f, null).exists())
         {
@@ -93,6 +96,10 @@ public void updateRunStatus(Status status)
         Map<String, Object> map = new HashMap<>();
         map.put("Status", status.getStatusId());
 
+        // Reads are only added during import, so the count can be recorded once it completes
+        if (Status.Complete == status)
+            map.put("ReadCount", GenotypingManager.get().countReads(_run));
+
         TableInfo runsTable = GenotypingSchema.get().getRunsTable();
         DbScope scope = runsTable.getSchema().getScope();
 
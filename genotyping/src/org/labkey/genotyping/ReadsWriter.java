@@ -0,0 +1,132 @@
+/*
+ * Copyright (c) 2026 LabKey Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.labkey.genotyping;
+
+import org.jetbrains.annotations.Nullable;
+import org.labkey.api.data.JdbcType;
+import org.labkey.api.data.Parameter;
+import org.labkey.api.data.Table;
+import org.labkey.api.data.TableInfo;
+import org.labkey.genotyping.sequences.ReadsCodec;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Inserts rows into genotyping.Reads as JDBC batches instead of making one round trip per read. Rows are buffered
+ * and sent every batchSize reads; callers must flush() before committing. Sequences and quality scores are stored
+ * as text or packed with ReadsCodec, depending on the Storage option.
+ */
+public class ReadsWriter
+{
+    public static final int DEFAULT_BATCH_SIZE = 1000;
+
+    public enum Storage
+    {
+        /** Sequence and Quality as text */
+        Text,
+        /** PackedSequence and PackedQuality, lossless */
+        Packed,
+        /** Packed, with quality scores reduced to the eight Illumina bins */
+        PackedBinned;
+
+        public static Storage fromString(@Nullable String value)
+        {
+            for (Storage storage : values())
+                if (storage.name().equalsIgnoreCase(value == null ? null : value.trim()))
+                    return storage;
+
+            return Text;
+        }
+    }
+
+    private static final Parameter.TypedValue NULL_TEXT = Parameter.nullParameter(JdbcType.VARCHAR);
+    private static final Parameter.TypedValue NULL_BINARY = Parameter.nullParameter(JdbcType.BINARY);
+
+    private final TableInfo _readsTable = GenotypingSchema.get().getReadsTable();
+    private final String _sql = "INSERT INTO " + _readsTable + " (Run, Name, SampleId, Sequence, Quality, PackedSequence, PackedQuality) VALUES (?, ?, ?, ?, ?, ?, ?)";
+    private final int _run;
+    private final int _batchSize;
+    private final Storage _storage;
+    private final List<List<?>> _batch;
+
+    private int _count = 0;
+    private long _textBytes = 0;
+    private long _storedBytes = 0;
+
+    public ReadsWriter(int run, int batchSize, Storage storage)
+    {
+        _run = run;
+        _batchSize = batchSize > 0 ? batchSize : DEFAULT_BATCH_SIZE;
+        _storage = storage;
+        _batch = new ArrayList<>(_batchSize);
+    }
+
+    public void add(String name, @Nullable Integer sampleId, String sequence, String quality)
+    {
+        Object sampleIdParam = null == sampleId ? Parameter.nullParameter(JdbcType.INTEGER) : sampleId;
+        byte[] packedSequence = null;
+        byte[] packedQuality = null;
+
+        if (Storage.Text != _storage)
+        {
+            packedSequence = ReadsCodec.encodeSequence(sequence);
+            packedQuality = ReadsCodec.encodeQuality(quality, Storage.PackedBinned == _storage);
+        }
+
+        _textBytes += sequence.length() + quality.length();
+
+        // Reads that can't be packed are stored as text
+        if (null != packedSequence && null != packedQuality)
+        {
+            _batch.add(Arrays.asList(_run, name, sampleIdParam, NULL_TEXT, NULL_TEXT, packedSequence, packedQuality));
+            _storedBytes += packedSequence.length + packedQuality.length;
+        }
+        else
+        {
+            _batch.add(Arrays.asList(_run, name, sampleIdParam, sequence, quality, NULL_BINARY, NULL_BINARY));
+            _storedBytes += sequence.length() + quality.length();
+        }
+
+        _count++;
+
+        if (_batch.size() >= _batchSize)
+            flush();
+    }
+
+    /** Sends any buffered reads to the database */
+    public void flush()
+    {
+        if (_batch.isEmpty())
+            return;
+
+        Table.batchExecute(_readsTable.getSchema(), _sql, _batch);
+        _batch.clear();
+    }
+
+    /** Stored size of the sequences and quality scores added, as a fraction of their size as text */
+    public double getStorageRatio()
+    {
+        return 0 == _textBytes ? 1.0 : (double)_storedBytes / _textBytes;
+    }
+
+    /** Number of reads added, including any not yet flushed */
+    public int getCount()
+    {
+        return _count;
+    }
+}
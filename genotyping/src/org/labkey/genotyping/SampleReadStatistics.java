@@ -0,0 +1,138 @@
+/*
+ * Copyright (c) 2026 LabKey Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.labkey.genotyping;
+
+import org.jetbrains.annotations.Nullable;
+import org.junit.Assert;
+import org.junit.Test;
+import org.labkey.api.data.JdbcType;
+import org.labkey.api.data.Parameter;
+import org.labkey.api.data.SqlExecutor;
+import org.labkey.api.data.TableInfo;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Maintains genotyping.SampleReadStatistics, the per-sample read count, base count, read length range and quality sum
+ * of each run, so run pages needn't scan genotyping.Reads. 454 imports add() each read and flush() with every commit,
+ * which merges the totals into the table in the same transaction as the reads, so a resumed import picks up where
+ * the statistics left off. FASTQ-based runs (Illumina, PacBio) only know their read counts; see
+ * updateFromSequenceFiles().
+ */
+public class SampleReadStatistics
+{
+    private static final int PHRED_OFFSET = 33;
+
+    private final int _run;
+    private final Map<Integer, Totals> _totals = new HashMap<>();   // null key holds reads that matched no sample
+
+    public SampleReadStatistics(int run)
+    {
+        _run = run;
+    }
+
+    public void add(@Nullable Integer sampleId, String sequence, String quality)
+    {
+        _totals.computeIfAbsent(sampleId, id -> new Totals()).add(sequence, quality);
+    }
+
+    /** Merges the totals added since the last flush into the run's statistics */
+    public void flush()
+    {
+        GenotypingSchema gs = GenotypingSchema.get();
+        TableInfo table = gs.getSampleReadStatisticsTable();
+        SqlExecutor executor = new SqlExecutor(gs.getSchema());
+        String update = "UPDATE " + table + " SET ReadCount = ReadCount + ?, TotalBases = TotalBases + ?, QualitySum = QualitySum + ?, " +
+                "MinLength = CASE WHEN MinLength <= ? THEN MinLength ELSE ? END, MaxLength = CASE WHEN MaxLength >= ? THEN MaxLength ELSE ? END WHERE Run = ? AND ";
+
+        for (Map.Entry<Integer, Totals> entry : _totals.entrySet())
+        {
+            Integer sampleId = entry.getKey();
+            Totals t = entry.getValue();
+            int updated;
+
+            if (null == sampleId)
+                updated = executor.execute(update + "SampleId IS NULL", t.reads, t.bases, t.qualitySum, t.minLength, t.minLength, t.maxLength, t.maxLength, _run);
+            else
+                updated = executor.execute(update + "SampleId = ?", t.reads, t.bases, t.qualitySum, t.minLength, t.minLength, t.maxLength, t.maxLength, _run, sampleId);
+
+            if (0 == updated)
+            {
+                executor.execute("INSERT INTO " + table + " (Run, SampleId, ReadCount, TotalBases, MinLength, MaxLength, QualitySum) VALUES (?, ?, ?, ?, ?, ?, ?)",
+                        _run, null == sampleId ? Parameter.nullParameter(JdbcType.INTEGER) : sampleId, t.reads, t.bases, t.minLength, t.maxLength, t.qualitySum);
+            }
+        }
+
+        _totals.clear();
+    }
+
+    /**
+     * Replaces the run's statistics with the read counts of its sequence files, summed per sample. FASTQ reads aren't
+     * parsed during import, so bases, lengths and quality are left null; paired-end reads count once per mate.
+     */
+    public static void updateFromSequenceFiles(int run)
+    {
+        GenotypingSchema gs = GenotypingSchema.get();
+        TableInfo table = gs.getSampleReadStatisticsTable();
+        SqlExecutor executor = new SqlExecutor(gs.getSchema());
+
+        executor.execute("DELETE FROM " + table + " WHERE Run = ?", run);
+        executor.execute("INSERT INTO " + table + " (Run, SampleId, ReadCount) SELECT Run, SampleId, SUM(ReadCount) FROM " +
+                gs.getSequenceFilesTable() + " WHERE Run = ? GROUP BY Run, SampleId", run);
+    }
+
+    // Running totals for one sample
+    static class Totals
+    {
+        private long reads = 0;
+        private long bases = 0;
+        private long qualitySum = 0;
+        private int minLength = Integer.MAX_VALUE;
+        private int maxLength = 0;
+
+        void add(String sequence, String quality)
+        {
+            int length = sequence.length();
+
+            reads++;
+            bases += length;
+            minLength = Math.min(minLength, length);
+            maxLength = Math.max(maxLength, length);
+
+            for (int i = 0; i < quality.length(); i++)
+                qualitySum += quality.charAt(i) - PHRED_OFFSET;
+        }
+    }
+
+    public static class TestCase extends Assert
+    {
+        @Test
+        public void testTotals()
+        {
+            Totals totals = new Totals();
+            totals.add("ACGT", "IIII");     // Phred 40
+            totals.add("AC", "++");         // Phred 10
+            totals.add("ACGTACGT", "55555555");   // Phred 20
+
+            assertEquals(3, totals.reads);
+            assertEquals(14, totals.bases);
+            assertEquals(2, totals.minLength);
+            assertEquals(8, totals.maxLength);
+            assertEquals(4 * 40 + 2 * 10 + 8 * 20, totals.qualitySum);
+        }
+    }
+}
@@ -0,0 +1,160 @@
+/*
+ * Copyright (c) 2026 LabKey Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.labkey.genotyping;
+
+import org.jetbrains.annotations.Nullable;
+import org.labkey.api.data.DbSchema;
+import org.labkey.api.data.DbScope;
+import org.labkey.api.data.SqlExecutor;
+import org.labkey.api.data.SqlSelector;
+import org.labkey.api.data.TempTableInfo;
+import org.labkey.api.data.TempTableWriter;
+import org.labkey.api.data.dialect.SqlDialect;
+import org.labkey.api.reader.ColumnDescriptor;
+import org.labkey.api.reader.MapLoader;
+import org.labkey.api.view.NotFoundException;
+import org.labkey.genotyping.sequences.AlleleLookup;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Imports the aggregated mhcQuery result entirely inside the database (PostgreSQL only): the query result is
+ * materialized into a temp table with match RowIds drawn from the Matches sequence, then Matches, AllelesJunction
+ * and ReadsJunction are each filled with a single INSERT ... SELECT. Allele names are validated against the
+ * reference dictionary with one anti-join rather than row by row in Java. Nothing but the dictionary crosses JDBC.
+ * <p>
+ * One importer serves a whole analysis: the dictionary is loaded once, into a shared temp table that every shard's
+ * connection can read, and dropped by close(). Each importMatches() call materializes its own results in an ON
+ * COMMIT DROP temp table, so concurrent shards on separate connections don't collide.
+ */
+public class SqlMatchesImporter implements Closeable
+{
+    private static final String RESULTS_TABLE = "genotyping_import_results";
+
+    private final GenotypingAnalysis _analysis;
+    private final DbSchema _schema;
+    private final SqlDialect _dialect;
+    private final @Nullable TempTableInfo _alleles;    // Null if the dictionary is empty
+
+    /**
+     * @param sequences allele name to Sequences RowId, as filtered by the analysis's dictionary and view
+     */
+    public SqlMatchesImporter(GenotypingAnalysis analysis, AlleleLookup sequences) throws IOException, SQLException
+    {
+        _analysis = analysis;
+        _schema = GenotypingSchema.get().getSchema();
+        _dialect = _schema.getSqlDialect();
+
+        // Reference dictionary, so validation and allele lookup can be joins
+        List<Map<String, Object>> rows = new ArrayList<>(sequences.size());
+        for (int i = 0; i < sequences.size(); i++)
+        {
+            Map<String, Object> row = new HashMap<>();
+            row.put("allele_name", sequences.getNameAt(i));
+            row.put("sequence_id", sequences.getRowIdAt(i));
+            rows.add(row);
+        }
+
+        if (rows.isEmpty())
+        {
+            _alleles = null;
+            return;
+        }
+
+        try (MapLoader loader = new MapLoader(rows))
+        {
+            // Allele names are always text, even ones that look numeric
+            for (ColumnDescriptor descriptor : loader.getColumns())
+                descriptor.clazz = "allele_name".equals(descriptor.name) ? String.class : Integer.class;
+
+            _alleles = new TempTableWriter(loader).loadTempTable();
+        }
+
+        new SqlExecutor(_alleles.getSchema()).execute("CREATE INDEX ON " + _alleles.getSelectName() + " (allele_name)");
+        _dialect.updateStatistics(_alleles);
+    }
+
+    public static boolean isSupported(DbSchema schema)
+    {
+        return schema.getSqlDialect().isPostgreSQL();
+    }
+
+    /**
+     * @param mhcSql the rendered mhcQuery, which must aggregate ReadIds and Alleles as arrays
+     * @return the number of matches imported
+     */
+    public int importMatches(String mhcSql)
+    {
+        GenotypingSchema gs = GenotypingSchema.get();
+        SqlExecutor executor = new SqlExecutor(_schema);
+        String percent = _dialect.getColumnSelectName("percent");
+
+        try (DbScope.Transaction transaction = _schema.getScope().ensureTransaction())
+        {
+            // Materialize the aggregated results, assigning each a match RowId
+            executor.execute("CREATE TEMPORARY TABLE " + RESULTS_TABLE + " ON COMMIT DROP AS " +
+                    "SELECT nextval(pg_get_serial_sequence('" + gs.getMatchesTable().getSelectName() + "', 'rowid'))::INT AS MatchId, results.* " +
+                    "FROM (" + mhcSql + ") results WHERE results.sampleid IS NOT NULL");
+            executor.execute("ANALYZE " + RESULTS_TABLE);
+
+            // Every allele must be in the dictionary
+            String missing = new SqlSelector(_schema, "SELECT allele FROM " + RESULTS_TABLE + " r CROSS JOIN unnest(r.alleles) AS a(allele)" +
+                    (null != _alleles ? " WHERE NOT EXISTS (SELECT 1 FROM " + _alleles.getSelectName() + " d WHERE d.allele_name = a.allele)" : "") +
+                    " LIMIT 1").getObject(String.class);
+
+            if (null != missing)
+            {
+                String view = _analysis.getSequencesView();
+                throw new NotFoundException("Allele name \"" + missing + "\" not found in reference sequences dictionary " +
+                        _analysis.getSequenceDictionary() + ", view \"" + (null != view ? view : "<default>") + "\"");
+            }
+
+            // With an empty dictionary, reaching here means there were no results
+            if (null == _alleles)
+            {
+                transaction.commit();
+                return 0;
+            }
+
+            int matchCount = executor.execute("INSERT INTO " + gs.getMatchesTable() + " (RowId, Analysis, SampleId, Reads, " + percent + ", AverageLength, PosReads, NegReads, PosExtReads, NegExtReads) " +
+                    "SELECT MatchId, ?, sampleid, reads, " + percent + ", avg_length, pos_reads, neg_reads, pos_ext_reads, neg_ext_reads FROM " + RESULTS_TABLE, _analysis.getRowId());
+
+            executor.execute("INSERT INTO " + gs.getAllelesJunctionTable() + " (Analysis, MatchId, SequenceId) " +
+                    "SELECT ?, r.MatchId, d.sequence_id FROM " + RESULTS_TABLE + " r CROSS JOIN unnest(r.alleles) AS a(allele) " +
+                    "INNER JOIN " + _alleles.getSelectName() + " d ON d.allele_name = a.allele", _analysis.getRowId());
+
+            executor.execute("INSERT INTO " + gs.getReadsJunctionTable() + " (MatchId, ReadId) " +
+                    "SELECT MatchId, unnest(ReadIds) FROM " + RESULTS_TABLE);
+
+            transaction.commit();
+
+            return matchCount;
+        }
+    }
+
+    @Override
+    public void close()
+    {
+        if (null != _alleles)
+            _alleles.delete();
+    }
+}
@@ -25,7 +25,13 @@
  */
 public enum Status
 {
-    NotSubmitted(0), Submitted(1), Importing(2), Complete(3);
+    NotSubmitted(0), Submitted(1), Importing(2), Complete(3),
+
+    // Queued for deletion by GenotypingPurger; hidden from the runs and analyses views
+    Deleting(4),
+
+    // Runs only: a failed import kept the reads it committed so a retry can resume; not ready for analysis
+    PartiallyImported(5);
 
     private static final Map<Integer, Status> _map = new HashMap<>();
 
@@ -17,11 +17,9 @@
 
 import com.fasterxml.jackson.annotation.JsonCreator;
 import com.fasterxml.jackson.annotation.JsonProperty;
-import org.apache.commons.lang3.mutable.MutableInt;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 import org.labkey.api.data.SimpleFilter;
-import org.labkey.api.data.TSVWriter;
 import org.labkey.api.data.Table;
 import org.labkey.api.data.TableInfo;
 import org.labkey.api.data.TableSelector;
@@ -30,6 +28,7 @@
 import org.labkey.api.query.FieldKey;
 import org.labkey.api.settings.AppProps;
 import org.labkey.api.util.FileUtil;
+import org.labkey.api.util.Formats;
 import org.labkey.api.util.MinorConfigurationException;
 import org.labkey.api.util.PageFlowUtil;
 import org.labkey.api.util.URLHelper;
@@ -38,16 +37,24 @@
 import org.labkey.genotyping.galaxy.GalaxyServer;
 import org.labkey.genotyping.galaxy.GalaxyUtils;
 import org.labkey.genotyping.galaxy.WorkflowCompletionMonitor;
+import org.labkey.genotyping.sequences.ReadsCodec;
 import org.labkey.genotyping.sequences.SequenceManager;
 
 import java.io.File;
 import java.io.IOException;
 import java.net.URISyntaxException;
+import java.sql.ResultSet;
 import java.sql.SQLException;
-import java.util.HashMap;
-import java.util.Map;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 import java.util.Properties;
 import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 
 /**
  * User: adam
@@ -56,6 +63,8 @@
  */
 public class SubmitAnalysisJob extends PipelineJob
 {
+    private static final int READS_FETCH_SIZE = 10000;
+
     private final File _dir;
     private final GenotypingAnalysis _analysis;
     private final File _analysisDir;
@@ -144,9 +153,8 @@ public void run()
             }
 
             writeAnalysisSamples();
-            writeReads();
+            writeReadsAndFasta();
             writeProperties(server);
-            writeFasta();
             sendFilesToGalaxy(server);
             monitorCompletion();
             if (!GenotypingManager.get().updateAnalysisStatus(_analysis, getUser(), Status.NotSubmitted, Status.Submitted))
@@ -164,44 +172,107 @@ public void run()
 
     private void writeAnalysisSamples()
     {
-        Map<String, Object> sampleMap = new HashMap<>();   // Map to reuse for each insertion to AnalysisSamples
-        sampleMap.put("analysis", _analysis.getRowId());
+        TableInfo analysisSamples = GenotypingSchema.get().getAnalysisSamplesTable();
+        List<List<?>> rows = new ArrayList<>(_sampleIds.size());
 
         for (Integer sampleId : _sampleIds)
-        {
-            sampleMap.put("sampleId", sampleId);
-            Table.insert(getUser(), GenotypingSchema.get().getAnalysisSamplesTable(), sampleMap);
-        }
+            rows.add(Arrays.asList(_analysis.getRowId(), sampleId));
+
+        if (!rows.isEmpty())
+            Table.batchExecute(analysisSamples.getSchema(), "INSERT INTO " + analysisSamples + " (Analysis, SampleId) VALUES (?, ?)", rows);
     }
 
 
-    private void writeReads() throws IOException
+    // The reads and the reference sequences come from unrelated tables, so export them concurrently: the FASTA file
+    // on a separate thread while this thread writes the reads
+    private void writeReadsAndFasta() throws Exception
     {
-        info("Writing reads file");
-        setStatus("WRITING READS");
+        setStatus("WRITING READS AND FASTA");
+        ExecutorService pool = Executors.newSingleThreadExecutor(r -> {
+            Thread t = new Thread(r, "Genotyping FASTA export");
+            t.setDaemon(true);
+            return t;
+        });
 
-        // Need a custom writer since TSVGridWriter does not work in background threads
-        try (TSVWriter writer = new TSVWriter() {
-            @Override
-            protected int write()
+        try
+        {
+            Future<?> fasta = pool.submit(() -> {
+                writeFasta();
+                return null;
+            });
+
+            try
             {
-                _pw.println("name\tsample\tsequence\tquality");
+                writeReads();
+            }
+            catch (Exception e)
+            {
+                // Interrupt the FASTA export, which then stops and deletes its partial file, wait for it to finish,
+                // and delete the FASTA file in case it had already been written
+                pool.shutdownNow();
+                pool.awaitTermination(1, TimeUnit.MINUTES);
+                getFastaFile().delete();
+                throw e;
+            }
 
-                TableInfo ti = GenotypingSchema.get().getReadsTable();
-                SimpleFilter filter = new SimpleFilter(FieldKey.fromParts("run"), _analysis.getRun());
-                filter.addInClause(FieldKey.fromParts("SampleId"), _sampleIds);
-                MutableInt rows = new MutableInt();
+            try
+            {
+                fasta.get();
+            }
+            catch (ExecutionException e)
+            {
+                Throwable cause = e.getCause();
 
-                new TableSelector(ti, ti.getColumns("name,sampleid,sequence,quality"), filter, null).forEach(rs -> {
-                    _pw.println(rs.getString(1) + "\t" + rs.getInt(2) + "\t" + rs.getString(3) + "\t" + rs.getString(4));
-                    rows.increment();
-                });
+                if (cause instanceof Exception)
+                    throw (Exception) cause;
 
-                return rows.getValue();
+                throw e;
             }
-        })
+        }
+        finally
         {
-            writer.write(new File(_analysisDir, "reads.txt"));
+            pool.shutdownNow();
+        }
+    }
+
+
+    private void writeReads() throws IOException, SQLException
+    {
+        info("Writing reads file");
+
+        boolean gzip = Boolean.parseBoolean(GenotypingModule.getPropertyValue(getContainer(), GenotypingModule.READS_EXPORT_GZIP));
+        File readsFile = new File(_analysisDir, gzip ? "reads.txt.gz" : "reads.txt");
+        TableInfo ti = GenotypingSchema.get().getReadsTable();
+        SimpleFilter filter = new SimpleFilter(FieldKey.fromParts("run"), _analysis.getRun());
+        filter.addInClause(FieldKey.fromParts("SampleId"), _sampleIds);
+        long start = System.currentTimeMillis();
+
+        // Stream the reads rather than caching the whole result set in memory
+        try (ReadsFileWriter writer = new ReadsFileWriter(readsFile, gzip);
+             ResultSet rs = new TableSelector(ti, ti.getColumns("name,sampleid,sequence,quality,packedsequence,packedquality"), filter, null).setJdbcCaching(false).getResultSet())
+        {
+            // The selector doesn't expose the statement's fetch size, so hint it on the result set: drivers that fetch
+            // in batches then pull this many rows per round trip instead of their (often tiny) default
+            rs.setFetchSize(READS_FETCH_SIZE);
+
+            while (rs.next())
+            {
+                // Reads imported with packed storage have null sequence and quality
+                String sequence = rs.getString(3);
+                String quality = rs.getString(4);
+                if (null == sequence)
+                    sequence = ReadsCodec.decodeSequence(rs.getBytes(5));
+                if (null == quality)
+                    quality = ReadsCodec.decodeQuality(rs.getBytes(6));
+                writer.writeRow(rs.getString(1), rs.getInt(2), sequence, quality);
+            }
+
+            writer.close();
+
+            long elapsed = System.currentTimeMillis() - start;
+            info("Wrote " + Formats.commaf0.format(writer.getRows()) + " reads, " + Formats.commaf0.format(writer.getBytes()) + " bytes" +
+                    (gzip ? " (" + Formats.commaf0.format(readsFile.length()) + " gzipped)" : "") +
+                    (elapsed > 0 ? ", " + Formats.commaf0.format(writer.getRows() * 1000.0 / elapsed) + " reads/sec" : ""));
         }
     }
 
@@ -235,9 +306,13 @@ private void writeProperties(@Nullable GalaxyServer server) throws IOException
     private void writeFasta() throws IOException, SQLException
     {
         info("Writing FASTA file");
-        setStatus("WRITING FASTA");
-        File fastaFile = new File(_analysisDir, GenotypingManager.SEQUENCES_FILE_NAME);
-        SequenceManager.get().writeFasta(getContainer(), getUser(), _analysis.getSequencesView(), fastaFile);
+        SequenceManager.get().writeFasta(getContainer(), getUser(), _analysis.getSequencesView(), getFastaFile());
+    }
+
+
+    private File getFastaFile()
+    {
+        return new File(_analysisDir, GenotypingManager.SEQUENCES_FILE_NAME);
     }
 
 
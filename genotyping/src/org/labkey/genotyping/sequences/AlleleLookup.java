@@ -0,0 +1,127 @@
+/*
+ * Copyright (c) 2026 LabKey Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.labkey.genotyping.sequences;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Immutable allele name to Sequences RowId lookup for one dictionary and view. Names are held interned in a sorted
+ * array, with the RowIds in a parallel int array, and found by binary search: far smaller than a HashMap of boxed
+ * Integers, and safe to share between concurrent analysis imports.
+ */
+public class AlleleLookup
+{
+    public static final int NOT_FOUND = -1;
+
+    private final String[] _names;
+    private final int[] _rowIds;
+
+    private AlleleLookup(String[] names, int[] rowIds)
+    {
+        _names = names;
+        _rowIds = rowIds;
+    }
+
+    /** @param rs AlleleName and RowId, in that order */
+    static AlleleLookup create(ResultSet rs) throws SQLException
+    {
+        List<String> names = new ArrayList<>();
+        List<Integer> rowIds = new ArrayList<>();
+
+        while (rs.next())
+        {
+            names.add(rs.getString(1).intern());
+            rowIds.add(rs.getInt(2));
+        }
+
+        return create(names, rowIds);
+    }
+
+    static AlleleLookup create(List<String> names, List<Integer> rowIds)
+    {
+        Integer[] order = new Integer[names.size()];
+        for (int i = 0; i < order.length; i++)
+            order[i] = i;
+        Arrays.sort(order, Comparator.comparing(names::get));
+
+        String[] sortedNames = new String[order.length];
+        int[] sortedRowIds = new int[order.length];
+
+        for (int i = 0; i < order.length; i++)
+        {
+            sortedNames[i] = names.get(order[i]);
+            sortedRowIds[i] = rowIds.get(order[i]);
+
+            if (i > 0 && sortedNames[i].equals(sortedNames[i - 1]))
+                throw new IllegalStateException("Duplicate allele name: " + sortedNames[i]);
+        }
+
+        return new AlleleLookup(sortedNames, sortedRowIds);
+    }
+
+    /** @return the allele's Sequences RowId, or NOT_FOUND */
+    public int getRowId(String alleleName)
+    {
+        int index = Arrays.binarySearch(_names, alleleName);
+        return index < 0 ? NOT_FOUND : _rowIds[index];
+    }
+
+    public int size()
+    {
+        return _names.length;
+    }
+
+    public String getNameAt(int index)
+    {
+        return _names[index];
+    }
+
+    public int getRowIdAt(int index)
+    {
+        return _rowIds[index];
+    }
+
+    public static class TestCase extends Assert
+    {
+        @Test
+        public void testLookup()
+        {
+            AlleleLookup lookup = create(Arrays.asList("Mamu-A1*001", "Mamu-B*017", "Mamu-A1*002"), Arrays.asList(10, 30, 20));
+
+            assertEquals(3, lookup.size());
+            assertEquals(10, lookup.getRowId("Mamu-A1*001"));
+            assertEquals(20, lookup.getRowId("Mamu-A1*002"));
+            assertEquals(30, lookup.getRowId("Mamu-B*017"));
+            assertEquals(NOT_FOUND, lookup.getRowId("Mamu-E*002"));
+            assertEquals("Mamu-A1*002", lookup.getNameAt(1));
+            assertEquals(20, lookup.getRowIdAt(1));
+        }
+
+        @Test(expected = IllegalStateException.class)
+        public void testDuplicate()
+        {
+            create(Arrays.asList("Mamu-A1*001", "Mamu-A1*001"), Arrays.asList(1, 2));
+        }
+    }
+}
@@ -0,0 +1,438 @@
+/*
+ * Copyright (c) 2026 LabKey Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.labkey.genotyping.sequences;
+
+import org.jetbrains.annotations.Nullable;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Compact binary encodings for read sequences and quality scores, stored in genotyping.Reads.PackedSequence and
+ * PackedQuality.
+ * <p>
+ * Sequences pack A, C, G and T into two bits each. Runs of any other character (N, IUPAC codes, gaps) are recorded
+ * as exceptions, and runs of lowercase bases as a mask, so the encoding is lossless for any ASCII sequence.
+ * <p>
+ * Quality strings are run-length encoded, or stored raw if that would be larger. Optionally they're first binned to
+ * the eight Illumina quality levels, which is lossy but makes runs much longer.
+ */
+public class ReadsCodec
+{
+    private static final byte SEQUENCE_PACKED = 1;
+    private static final byte QUALITY_RAW = 0;
+    private static final byte QUALITY_RLE = 1;
+
+    private static final int PHRED_OFFSET = 33;
+
+    private ReadsCodec()
+    {
+    }
+
+    /** @return the packed sequence, or null if it contains characters that can't be packed (non-ASCII) */
+    public static @Nullable byte[] encodeSequence(String sequence)
+    {
+        int length = sequence.length();
+        ByteWriter mask = new ByteWriter(8);
+        ByteWriter exceptions = new ByteWriter(8);
+        byte[] packed = new byte[(length + 3) / 4];
+        int maskRuns = 0;
+        int maskEnd = 0;
+        int exceptionRuns = 0;
+        int exceptionEnd = 0;
+
+        for (int i = 0; i < length; i++)
+        {
+            char c = sequence.charAt(i);
+
+            if (c > 127)
+                return null;
+
+            if (isLowerCase(c))
+            {
+                int start = i;
+                while (i + 1 < length && isLowerCase(sequence.charAt(i + 1)))
+                    i++;
+
+                mask.writeVarint(start - maskEnd);
+                mask.writeVarint(i + 1 - start);
+                maskEnd = i + 1;
+                maskRuns++;
+            }
+        }
+
+        for (int i = 0; i < length; i++)
+        {
+            char upper = toUpperCase(sequence.charAt(i));
+            int code = baseCode(upper);
+
+            if (code >= 0)
+            {
+                packed[i >> 2] |= (byte)(code << ((i & 3) * 2));
+            }
+            else
+            {
+                int start = i;
+                while (i + 1 < length && toUpperCase(sequence.charAt(i + 1)) == upper)
+                    i++;
+
+                exceptions.writeVarint(start - exceptionEnd);
+                exceptions.writeVarint(i + 1 - start);
+                exceptions.write(upper);
+                exceptionEnd = i + 1;
+                exceptionRuns++;
+            }
+        }
+
+        ByteWriter out = new ByteWriter(packed.length + mask.size() + exceptions.size() + 12);
+        out.write(SEQUENCE_PACKED);
+        out.writeVarint(length);
+        out.writeVarint(maskRuns);
+        out.write(mask);
+        out.writeVarint(exceptionRuns);
+        out.write(exceptions);
+        out.write(packed, packed.length);
+
+        return out.toByteArray();
+    }
+
+    public static String decodeSequence(byte[] bytes)
+    {
+        ByteReader in = new ByteReader(bytes);
+
+        if (in.read() != SEQUENCE_PACKED)
+            throw new IllegalArgumentException("Unrecognized packed sequence format");
+
+        int length = in.readVarint();
+        char[] chars = new char[length];
+
+        int[] maskRuns = new int[2 * in.readVarint()];
+        for (int i = 0; i < maskRuns.length; i++)
+            maskRuns[i] = in.readVarint();
+
+        int exceptionCount = in.readVarint();
+        int[] exceptionRuns = new int[2 * exceptionCount];
+        char[] exceptionChars = new char[exceptionCount];
+        for (int i = 0; i < exceptionCount; i++)
+        {
+            exceptionRuns[2 * i] = in.readVarint();
+            exceptionRuns[2 * i + 1] = in.readVarint();
+            exceptionChars[i] = (char)in.read();
+        }
+
+        int offset = in.position();
+        for (int i = 0; i < length; i++)
+            chars[i] = "ACGT".charAt((bytes[offset + (i >> 2)] >> ((i & 3) * 2)) & 3);
+
+        int position = 0;
+        for (int i = 0; i < exceptionCount; i++)
+        {
+            position += exceptionRuns[2 * i];
+            int end = position + exceptionRuns[2 * i + 1];
+            Arrays.fill(chars, position, end, exceptionChars[i]);
+            position = end;
+        }
+
+        position = 0;
+        for (int i = 0; i < maskRuns.length; i += 2)
+        {
+            position += maskRuns[i];
+            int end = position + maskRuns[i + 1];
+            for (; position < end; position++)
+                chars[position] = Character.toLowerCase(chars[position]);
+        }
+
+        return new String(chars);
+    }
+
+    /**
+     * @param binned reduce Phred+33 scores to the eight Illumina quality bins first. Lossy; scores that can't be
+     *               binned are stored exactly.
+     * @return the encoded quality string, or null if it contains non-ASCII characters
+     */
+    public static @Nullable byte[] encodeQuality(String quality, boolean binned)
+    {
+        int length = quality.length();
+        byte[] values = new byte[length];
+
+        for (int i = 0; i < length; i++)
+        {
+            char c = quality.charAt(i);
+
+            if (c > 127)
+                return null;
+
+            values[i] = (byte)c;
+        }
+
+        if (binned)
+        {
+            byte[] binnedValues = new byte[length];
+
+            for (int i = 0; i < length; i++)
+            {
+                int score = values[i] - PHRED_OFFSET;
+
+                if (score < 0)
+                {
+                    binnedValues = null;
+                    break;
+                }
+
+                binnedValues[i] = (byte)(bin(score) + PHRED_OFFSET);
+            }
+
+            if (null != binnedValues)
+                values = binnedValues;
+        }
+
+        ByteWriter rle = new ByteWriter(length / 2 + 8);
+        rle.write(QUALITY_RLE);
+        rle.writeVarint(length);
+
+        for (int i = 0; i < length; i++)
+        {
+            int start = i;
+            while (i + 1 < length && values[i + 1] == values[start])
+                i++;
+
+            rle.write(values[start]);
+            rle.writeVarint(i + 1 - start);
+        }
+
+        if (rle.size() <= length + 1)
+            return rle.toByteArray();
+
+        ByteWriter raw = new ByteWriter(length + 1);
+        raw.write(QUALITY_RAW);
+        raw.write(values, length);
+
+        return raw.toByteArray();
+    }
+
+    public static String decodeQuality(byte[] bytes)
+    {
+        ByteReader in = new ByteReader(bytes);
+        int format = in.read();
+
+        if (QUALITY_RAW == format)
+            return new String(bytes, 1, bytes.length - 1, StandardCharsets.US_ASCII);
+
+        if (QUALITY_RLE != format)
+            throw new IllegalArgumentException("Unrecognized packed quality format");
+
+        char[] chars = new char[in.readVarint()];
+        int position = 0;
+
+        while (position < chars.length)
+        {
+            char c = (char)in.read();
+            int end = position + in.readVarint();
+            Arrays.fill(chars, position, end, c);
+            position = end;
+        }
+
+        return new String(chars);
+    }
+
+    // Illumina's eight-level quality binning
+    static int bin(int score)
+    {
+        if (score < 2)
+            return score;
+        if (score < 10)
+            return 6;
+        if (score < 20)
+            return 15;
+        if (score < 25)
+            return 22;
+        if (score < 30)
+            return 27;
+        if (score < 35)
+            return 33;
+        if (score < 40)
+            return 37;
+        return 40;
+    }
+
+    private static boolean isLowerCase(char c)
+    {
+        return c >= 'a' && c <= 'z';
+    }
+
+    private static char toUpperCase(char c)
+    {
+        return isLowerCase(c) ? (char)(c - ('a' - 'A')) : c;
+    }
+
+    private static int baseCode(char upper)
+    {
+        switch (upper)
+        {
+            case 'A': return 0;
+            case 'C': return 1;
+            case 'G': return 2;
+            case 'T': return 3;
+            default: return -1;
+        }
+    }
+
+    private static class ByteWriter
+    {
+        private byte[] _bytes;
+        private int _size = 0;
+
+        private ByteWriter(int capacity)
+        {
+            _bytes = new byte[Math.max(capacity, 8)];
+        }
+
+        private void ensure(int additional)
+        {
+            if (_size + additional > _bytes.length)
+                _bytes = Arrays.copyOf(_bytes, Math.max(2 * _bytes.length, _size + additional));
+        }
+
+        private void write(int b)
+        {
+            ensure(1);
+            _bytes[_size++] = (byte)b;
+        }
+
+        private void write(byte[] bytes, int length)
+        {
+            ensure(length);
+            System.arraycopy(bytes, 0, _bytes, _size, length);
+            _size += length;
+        }
+
+        private void write(ByteWriter other)
+        {
+            write(other._bytes, other._size);
+        }
+
+        // Unsigned LEB128
+        private void writeVarint(int value)
+        {
+            while ((value & ~0x7f) != 0)
+            {
+                write((value & 0x7f) | 0x80);
+                value >>>= 7;
+            }
+
+            write(value);
+        }
+
+        private int size()
+        {
+            return _size;
+        }
+
+        private byte[] toByteArray()
+        {
+            return Arrays.copyOf(_bytes, _size);
+        }
+    }
+
+    private static class ByteReader
+    {
+        private final byte[] _bytes;
+        private int _position = 0;
+
+        private ByteReader(byte[] bytes)
+        {
+            _bytes = bytes;
+        }
+
+        private int read()
+        {
+            return _bytes[_position++] & 0xff;
+        }
+
+        private int readVarint()
+        {
+            int value = 0;
+            int shift = 0;
+            int b;
+
+            do
+            {
+                b = read();
+                value |= (b & 0x7f) << shift;
+                shift += 7;
+            }
+            while ((b & 0x80) != 0);
+
+            return value;
+        }
+
+        private int position()
+        {
+            return _position;
+        }
+    }
+
+    public static class TestCase extends Assert
+    {
+        @Test
+        public void testSequenceRoundTrip()
+        {
+            for (String sequence : new String[]{"", "A", "ACGT", "ACGTNNNNacgtnnRYK-.acgTTGCA", "nnnnnnnnnnnnnnnnnnnn", "GATTACAgattaca*"})
+                assertEquals(sequence, decodeSequence(encodeSequence(sequence)));
+
+            Random random = new Random(0);
+            StringBuilder sb = new StringBuilder();
+            for (int i = 0; i < 1000; i++)
+                sb.append("ACGTNacgtn".charAt(random.nextInt(10)));
+            String sequence = sb.toString();
+            assertEquals(sequence, decodeSequence(encodeSequence(sequence)));
+
+            assertNull(encodeSequence("ACG\u00e9"));
+        }
+
+        @Test
+        public void testPackedSize()
+        {
+            StringBuilder sb = new StringBuilder();
+            for (int i = 0; i < 250; i++)
+                sb.append("ACGT");
+
+            assertTrue(encodeSequence(sb.toString()).length < 1000 / 4 + 10);
+        }
+
+        @Test
+        public void testQualityRoundTrip()
+        {
+            for (String quality : new String[]{"", "I", "IIIIIIIII###", "!\"#$%&'()*+,-./0123456789:;<=>?@ABCDEFGHIJ"})
+                assertEquals(quality, decodeQuality(encodeQuality(quality, false)));
+
+            assertNull(encodeQuality("II\u00e9", false));
+        }
+
+        @Test
+        public void testBinnedQuality()
+        {
+            // Phred 0, 5, 12, 38, 41
+            assertEquals("!'0FI", decodeQuality(encodeQuality("!&-GJ", true)));
+
+            // Below the Phred+33 range, so stored exactly
+            assertEquals(" !", decodeQuality(encodeQuality(" !", true)));
+        }
+    }
+}
@@ -0,0 +1,79 @@
+/*
+ * Copyright (c) 2026 LabKey Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.labkey.genotyping.sequences;
+
+import org.jetbrains.annotations.Nullable;
+import org.labkey.api.cache.Cache;
+import org.labkey.api.cache.CacheManager;
+import org.labkey.api.data.Container;
+
+import java.util.Collection;
+
+/**
+ * Caches each folder's current sequence dictionary RowId and the allele lookups built for (dictionary, view)
+ * combinations. Dictionaries never change once loaded, so entries only go stale when a new dictionary is loaded
+ * or the folder is deleted; SequenceManager invalidates them then.
+ */
+public class SequenceDictionaryCache
+{
+    private static final SequenceDictionaryCache _instance = new SequenceDictionaryCache();
+
+    private final Cache<String, Integer> _currentDictionaries = CacheManager.getCache(1000, CacheManager.DAY, "Genotyping current sequence dictionaries");
+    private final Cache<String, AlleleLookup> _lookups = CacheManager.getCache(50, CacheManager.DAY, "Genotyping allele lookups");
+
+    private SequenceDictionaryCache()
+    {
+        // prevent external construction with a private default constructor
+    }
+
+    public static SequenceDictionaryCache get()
+    {
+        return _instance;
+    }
+
+    public @Nullable Integer getCurrentDictionaryId(Container c)
+    {
+        return _currentDictionaries.get(c.getId());
+    }
+
+    public void setCurrentDictionaryId(Container c, int dictionaryId)
+    {
+        _currentDictionaries.put(c.getId(), dictionaryId);
+    }
+
+    // key is built by SequenceManager from the dictionary RowId and the view filter
+    public @Nullable AlleleLookup getLookup(String key)
+    {
+        return _lookups.get(key);
+    }
+
+    public void putLookup(String key, AlleleLookup lookup)
+    {
+        _lookups.put(key, lookup);
+    }
+
+    /** Drops the folder's current dictionary and the lookups of the specified dictionaries */
+    public void invalidate(Container c, Collection<Integer> dictionaryIds)
+    {
+        _currentDictionaries.remove(c.getId());
+
+        for (Integer dictionaryId : dictionaryIds)
+        {
+            String prefix = dictionaryId + "_";
+            _lookups.removeUsingFilter(key -> key.startsWith(prefix));
+        }
+    }
+}
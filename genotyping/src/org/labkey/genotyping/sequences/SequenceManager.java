@@ -18,7 +18,10 @@
 import org.apache.commons.lang3.StringUtils;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
+import org.labkey.api.data.ColumnInfo;
 import org.labkey.api.data.Container;
+import org.labkey.api.data.DbScope;
+import org.labkey.api.data.Parameter;
 import org.labkey.api.data.SQLFragment;
 import org.labkey.api.data.SimpleFilter;
 import org.labkey.api.data.Sort;
@@ -30,21 +33,37 @@
 import org.labkey.api.query.QueryHelper;
 import org.labkey.api.security.User;
 import org.labkey.api.security.permissions.AdminPermission;
+import org.labkey.api.util.DateUtil;
+import org.labkey.api.util.FileUtil;
+import org.labkey.api.util.Formats;
 import org.labkey.api.util.ResultSetUtil;
 import org.labkey.api.view.NotFoundException;
 import org.labkey.api.writer.FastaEntry;
 import org.labkey.api.writer.FastaWriter;
 import org.labkey.api.writer.ResultSetFastaGenerator;
+import org.labkey.genotyping.GenotypingManager;
 import org.labkey.genotyping.GenotypingQueryHelper;
 import org.labkey.genotyping.GenotypingSchema;
 import org.labkey.genotyping.ValidatingGenotypingFolderSettings;
 
 import java.io.File;
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
 import java.sql.SQLException;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.HexFormat;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
 
 /**
  * User: adam
@@ -68,13 +87,15 @@ public static SequenceManager get()
     }
 
 
-    public void loadSequences(Container c, final User user)
+    /**
+     * Loads a new dictionary of reference sequences from the folder's sequences query and makes it current. Source
+     * columns are mapped to Sequences columns once (ignoring underscores and case), and rows are inserted in JDBC
+     * batches, all in one transaction. In a dry run, the source is read and mapped but nothing is written, which
+     * reports the read and conversion throughput on its own.
+     */
+    public LoadResult loadSequences(Container c, final User user, boolean dryRun)
     {
-        Map<String, Object> dictionary = new HashMap<>();
-        dictionary.put("container", c);
-        Table.insert(user, GenotypingSchema.get().getDictionariesTable(), dictionary);
-        final int dictionaryId = getCurrentDictionary(c, user).getRowId();
-
+        long start = System.currentTimeMillis();
         ValidatingGenotypingFolderSettings settings = new ValidatingGenotypingFolderSettings(c, user, "loading sequences");
         QueryHelper qHelper = new GenotypingQueryHelper(c, user, settings.getSequencesQuery());
 
@@ -85,48 +106,340 @@ public void loadSequences(Container c, final User user)
             viewFilter.addCondition(FieldKey.fromParts("file_active"), 1);
         TableInfo source = qHelper.getTableInfo();
 
-        new TableSelector(source, viewFilter, null).forEachMap(map -> {
-            Map<String, Object> inMap = new HashMap<>(map.size() * 2);
+        if (dryRun)
+        {
+            SequenceLoader loader = new SequenceLoader(destination, null);
+            new TableSelector(source, viewFilter, null).forEach(loader::add);
+            return new LoadResult(true, loader.getRows(), loader.getSkipped(), System.currentTimeMillis() - start);
+        }
+
+        // The new dictionary gets its own cache entries; drop those of the dictionaries it replaces
+        clearCaches(c);
+
+        SequenceLoader loader;
+        final int dictionaryId;
+
+        try (DbScope.Transaction transaction = destination.getSchema().getScope().ensureTransaction())
+        {
+            Map<String, Object> dictionary = new HashMap<>();
+            dictionary.put("container", c);
+            dictionary = Table.insert(user, GenotypingSchema.get().getDictionariesTable(), dictionary);
+            dictionaryId = (Integer)dictionary.get("RowId");
+
+            loader = new SequenceLoader(destination, dictionaryId);
+            new TableSelector(source, viewFilter, null).forEach(loader::add);
+            loader.flush();
+
+            transaction.commit();
+        }
+
+        // Point the folder at the new dictionary only once it's committed
+        SequenceDictionaryCache.get().setCurrentDictionaryId(c, dictionaryId);
+        destination.getSqlDialect().updateStatistics(destination);
+
+        return new LoadResult(false, loader.getRows(), loader.getSkipped(), System.currentTimeMillis() - start);
+    }
+
+
+    // Maps source rows to Sequences columns and inserts them in batches. The column mapping is computed from the first
+    // row's metadata: underscores are stripped from source column names and matched case-insensitively, as Table.insert
+    // matched the old per-row maps.
+    private static class SequenceLoader
+    {
+        private static final int BATCH_SIZE = 1000;
+
+        private final TableInfo _destination;
+        private final @Nullable Integer _dictionaryId;   // null for a dry run
+        private final List<List<?>> _batch = new ArrayList<>(BATCH_SIZE);
+
+        private int[] _sourceIndexes;
+        private ColumnInfo[] _columns;
+        private Parameter.TypedValue[] _nulls;
+        private int _sequenceIndex = -1;
+        private String _sql;
+        private int _rows = 0;
+        private int _skipped = 0;
+
+        private SequenceLoader(TableInfo destination, @Nullable Integer dictionaryId)
+        {
+            _destination = destination;
+            _dictionaryId = dictionaryId;
+        }
+
+        private void map(ResultSetMetaData md) throws SQLException
+        {
+            List<Integer> sourceIndexes = new ArrayList<>();
+            List<ColumnInfo> columns = new ArrayList<>();
+            Set<String> mapped = new HashSet<>();
+
+            for (int i = 1; i <= md.getColumnCount(); i++)
+            {
+                String name = md.getColumnLabel(i).replace("_", "");
+                ColumnInfo column = _destination.getColumn(name);
+
+                // RowId is generated and Dictionary is set here; skip any column mapped twice
+                if (null == column || "RowId".equalsIgnoreCase(name) || "Dictionary".equalsIgnoreCase(name) || !mapped.add(column.getName().toLowerCase()))
+                    continue;
+
+                if ("Sequence".equalsIgnoreCase(column.getName()))
+                    _sequenceIndex = columns.size();
+
+                sourceIndexes.add(i);
+                columns.add(column);
+            }
+
+            if (_sequenceIndex < 0)
+                throw new IllegalStateException("Sequences query has no sequence column");
+
+            _sourceIndexes = sourceIndexes.stream().mapToInt(Integer::intValue).toArray();
+            _columns = columns.toArray(new ColumnInfo[0]);
+            _nulls = new Parameter.TypedValue[_columns.length];
+
+            StringBuilder names = new StringBuilder("Dictionary");
+            StringBuilder params = new StringBuilder("?");
 
-            // General way to map column names would be nice...
-            for (Map.Entry<String, Object> entry : map.entrySet())
+            for (int i = 0; i < _columns.length; i++)
             {
-                String key = entry.getKey().replaceAll("_", "");
-                inMap.put(key, entry.getValue());
+                _nulls[i] = Parameter.nullParameter(_columns[i].getJdbcType());
+                names.append(", ").append(_columns[i].getSelectName());
+                params.append(", ?");
+            }
+
+            _sql = "INSERT INTO " + _destination + " (" + names + ") VALUES (" + params + ")";
+        }
+
+        private void add(ResultSet rs) throws SQLException
+        {
+            if (null == _sql)
+                map(rs.getMetaData());
+
+            List<Object> row = new ArrayList<>(_columns.length + 1);
+            row.add(_dictionaryId);
+
+            for (int i = 0; i < _columns.length; i++)
+            {
+                Object value = _columns[i].getJdbcType().convert(rs.getObject(_sourceIndexes[i]));
+
+                // Skip empty sequences.  TODO: remove this check once wisconsin eliminates empty sequences
+                if (i == _sequenceIndex && (null == value || StringUtils.isBlank(value.toString())))
+                {
+                    _skipped++;
+                    return;
+                }
+
+                row.add(null == value ? _nulls[i] : value);
             }
 
-            // Skip empty sequences.  TODO: remove this check once wisconsin eliminates empty sequences
-            if (StringUtils.isBlank((String)inMap.get("sequence")))
+            _rows++;
+
+            if (null == _dictionaryId)
                 return;
 
-            inMap.put("dictionary", dictionaryId);
-            Table.insert(user, destination, inMap);
-        });
+            _batch.add(row);
 
-        destination.getSqlDialect().updateStatistics(destination);
+            if (_batch.size() >= BATCH_SIZE)
+                flush();
+        }
+
+        private void flush()
+        {
+            if (_batch.isEmpty())
+                return;
+
+            Table.batchExecute(_destination.getSchema(), _sql, _batch);
+            _batch.clear();
+        }
+
+        private int getRows()
+        {
+            return _rows;
+        }
+
+        private int getSkipped()
+        {
+            return _skipped;
+        }
+    }
+
+
+    public static class LoadResult
+    {
+        private final boolean _dryRun;
+        private final int _rows;
+        private final int _skipped;
+        private final long _elapsed;
+
+        private LoadResult(boolean dryRun, int rows, int skipped, long elapsed)
+        {
+            _dryRun = dryRun;
+            _rows = rows;
+            _skipped = skipped;
+            _elapsed = elapsed;
+        }
+
+        public boolean isDryRun()
+        {
+            return _dryRun;
+        }
+
+        public int getRows()
+        {
+            return _rows;
+        }
+
+        public int getSkipped()
+        {
+            return _skipped;
+        }
+
+        public long getElapsed()
+        {
+            return _elapsed;
+        }
+
+        @Override
+        public String toString()
+        {
+            return (_dryRun ? "Dry run: read " : "Loaded ") + Formats.commaf0.format(_rows) + " sequences" +
+                    (_skipped > 0 ? " (skipped " + Formats.commaf0.format(_skipped) + " empty)" : "") + " in " + DateUtil.formatDuration(_elapsed) +
+                    (_elapsed > 0 ? ", " + Formats.commaf0.format(_rows * 1000.0 / _elapsed) + " sequences/sec" : "");
+        }
     }
 
 
+    /**
+     * Writes the current dictionary's sequences, as filtered by the view, to a FASTA file. The FASTA is generated once
+     * per (dictionary, view filter) and cached on disk; destination is then a hard link to the cached file, or a copy
+     * if the file system doesn't support links. Dictionaries never change once loaded, so entries only need to be
+     * dropped when a new dictionary replaces them (see loadSequences).
+     */
     public void writeFasta(Container c, User user, @Nullable String sequencesViewName, File destination) throws IOException, SQLException
     {
-        try (ResultSet rs = selectSequences(c, user, getCurrentDictionary(c, user), sequencesViewName, "AlleleName,Sequence"))
+        SequenceDictionary dictionary = getCurrentDictionary(c, user);
+        SimpleFilter viewFilter = getViewFilter(c, user, dictionary, sequencesViewName);
+        File cached = new File(getFastaCacheDirectory(), getCacheKey(dictionary, viewFilter) + ".fasta");
+
+        if (!cached.exists())
         {
-            FastaWriter<FastaEntry> fw = new FastaWriter<>(new ResultSetFastaGenerator(rs)
+            File dir = getFastaCacheDirectory();
+            FileUtil.mkdirs(dir);
+
+            // Write under a temporary name so concurrent submissions never see a partial file
+            File temp = File.createTempFile(cached.getName() + ".", ".tmp", dir);
+
+            try
             {
-                @Override
-                public String getHeader(ResultSet rs) throws SQLException
+                try (ResultSet rs = selectSequences(dictionary, viewFilter, "AlleleName,Sequence"))
                 {
-                    return rs.getString("AlleleName");
+                    writeFasta(rs, temp);
                 }
 
-                @Override
-                public String getSequence(ResultSet rs) throws SQLException
-                {
-                    return rs.getString("Sequence");
-                }
-            });
+                Files.move(temp.toPath(), cached.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            }
+            finally
+            {
+                temp.delete();
+            }
+        }
+
+        try
+        {
+            Files.createLink(destination.toPath(), cached.toPath());
+        }
+        catch (IOException | UnsupportedOperationException e)
+        {
+            Files.copy(cached.toPath(), destination.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+
+    // Stops with a CancellationException if the writing thread is interrupted, e.g., by a submission that failed
+    private void writeFasta(ResultSet rs, File destination) throws IOException
+    {
+        FastaWriter<FastaEntry> fw = new FastaWriter<>(new ResultSetFastaGenerator(rs)
+        {
+            @Override
+            public String getHeader(ResultSet rs) throws SQLException
+            {
+                if (Thread.currentThread().isInterrupted())
+                    throw new CancellationException("FASTA export was cancelled");
+
+                return rs.getString("AlleleName");
+            }
+
+            @Override
+            public String getSequence(ResultSet rs) throws SQLException
+            {
+                return rs.getString("Sequence");
+            }
+        });
+
+        fw.write(destination);
+    }
 
-            fw.write(destination);
+
+    private File getFastaCacheDirectory()
+    {
+        return new File(FileUtil.getTempDirectory(), "genotyping_fasta");
+    }
+
+
+    // Drops everything cached for this container's dictionaries: the current dictionary pointer, allele lookups and
+    // FASTA files. Called when a new dictionary is loaded and when the container is deleted.
+    public void clearCaches(Container c)
+    {
+        List<Integer> dictionaryIds = new SqlSelector(GenotypingSchema.get().getSchema(), "SELECT RowId FROM " + GenotypingSchema.get().getDictionariesTable() + " WHERE Container = ?", c).getArrayList(Integer.class);
+
+        SequenceDictionaryCache.get().invalidate(c, dictionaryIds);
+        invalidateFastaCache(dictionaryIds);
+    }
+
+
+    // Deletes the cached FASTA files of the specified dictionaries
+    private void invalidateFastaCache(List<Integer> dictionaryIds)
+    {
+        File dir = getFastaCacheDirectory();
+
+        if (!dir.isDirectory())
+            return;
+
+        Set<String> prefixes = new HashSet<>();
+        for (Integer rowId : dictionaryIds)
+            prefixes.add(rowId + "_");
+
+        File[] files = dir.listFiles();
+
+        if (null == files)
+            return;
+
+        for (File file : files)
+        {
+            String name = file.getName();
+            int underscore = name.indexOf('_');
+
+            if (underscore > 0 && prefixes.contains(name.substring(0, underscore + 1)))
+                file.delete();
+        }
+    }
+
+
+    // Dictionary RowId followed by a hash of the view filter; FASTA files and allele lookups are both cached by this
+    private static String getCacheKey(SequenceDictionary dictionary, SimpleFilter viewFilter)
+    {
+        return dictionary.getRowId() + "_" + hash(viewFilter.toQueryString("Sequences"));
+    }
+
+
+    private static String hash(String s)
+    {
+        try
+        {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            return HexFormat.of().formatHex(digest.digest(s.getBytes(StandardCharsets.UTF_8)));
+        }
+        catch (NoSuchAlgorithmException e)
+        {
+            throw new IllegalStateException(e);
         }
     }
 
@@ -141,46 +454,79 @@ public String getSequence(ResultSet rs) throws SQLException
     // Throws or returns null, depending on value of throwIfNotLoaded flag
     public SequenceDictionary getCurrentDictionary(Container c, User user, boolean throwIfNotLoaded)
     {
-        Integer max = new SqlSelector(GenotypingSchema.get().getSchema(),
-            new SQLFragment("SELECT MAX(RowId) FROM " + GenotypingSchema.get().getDictionariesTable() + " WHERE Container = ?", c)).getObject(Integer.class);
+        Integer max = getCurrentDictionaryId(c, user, throwIfNotLoaded);
+
+        return null != max ? getSequenceDictionary(c, max) : null;
+    }
+
+
+    // RowId of the current dictionary, served from SequenceDictionaryCache, for callers that need only the RowId (e.g.,
+    // to filter the sequences views). Throws NotFoundException if reference sequences have not been loaded.
+    public int getCurrentDictionaryId(Container c, User user)
+    {
+        return getCurrentDictionaryId(c, user, true);
+    }
+
+
+    // Throws or returns null, depending on value of throwIfNotLoaded flag
+    public @Nullable Integer getCurrentDictionaryId(Container c, User user, boolean throwIfNotLoaded)
+    {
+        Integer max = SequenceDictionaryCache.get().getCurrentDictionaryId(c);
 
         if (null == max)
         {
-            if (throwIfNotLoaded)
-            {
-                // This will throw NotFoundException if the query is not defined yet
-                new ValidatingGenotypingFolderSettings(c, user, "creating an analysis").getSequencesQuery();
-                // Otherwise, assume sequences haven't been loading yet
-                String who = c.hasPermission(user, AdminPermission.class) ? "you" : "an administrator";
-                throw new NotFoundException("Before creating an analysis, " + who + " must load reference sequences via the genotyping admin page");
-            }
-            else
-                return null;
+            max = new SqlSelector(GenotypingSchema.get().getSchema(),
+                new SQLFragment("SELECT MAX(RowId) FROM " + GenotypingSchema.get().getDictionariesTable() + " WHERE Container = ?", c)).getObject(Integer.class);
+
+            if (null != max)
+                SequenceDictionaryCache.get().setCurrentDictionaryId(c, max);
         }
 
-        return getSequenceDictionary(c, max);
+        if (null == max && throwIfNotLoaded)
+        {
+            // This will throw NotFoundException if the query is not defined yet
+            new ValidatingGenotypingFolderSettings(c, user, "creating an analysis").getSequencesQuery();
+            // Otherwise, assume sequences haven't been loading yet
+            String who = c.hasPermission(user, AdminPermission.class) ? "you" : "an administrator";
+            throw new NotFoundException("Before creating an analysis, " + who + " must load reference sequences via the genotyping admin page");
+        }
+
+        return max;
     }
 
 
-    public Map<String, Integer> getSequences(Container c, User user, SequenceDictionary dictionary, String sequencesViewName) throws SQLException
+    // Allele name to Sequences RowId for the dictionary's sequences in the specified view. Lookups are immutable, so
+    // they're built once per (dictionary, view filter) and shared by every analysis import that uses them.
+    public AlleleLookup getSequences(Container c, User user, SequenceDictionary dictionary, String sequencesViewName) throws SQLException
     {
-        HashMap<String, Integer> sequences = new HashMap<>();
+        SimpleFilter viewFilter = getViewFilter(c, user, dictionary, sequencesViewName);
+        String key = getCacheKey(dictionary, viewFilter);
+        AlleleLookup lookup = SequenceDictionaryCache.get().getLookup(key);
 
-        try (ResultSet rs = selectSequences(c, user, dictionary, sequencesViewName, "AlleleName,RowId"))
+        if (null == lookup)
         {
-            while (rs.next())
+            try (ResultSet rs = selectSequences(dictionary, viewFilter, "AlleleName,RowId"))
             {
-                Integer previous = sequences.put(rs.getString(1), rs.getInt(2));
-
-                if (null != previous)
-                    throw new IllegalStateException("Duplicate allele name: " + rs.getString(1));
+                lookup = AlleleLookup.create(rs);
             }
 
-            return sequences;
+            SequenceDictionaryCache.get().putLookup(key, lookup);
         }
+
+        return lookup;
     }
 
-    private ResultSet selectSequences(Container c, User user, SequenceDictionary dictionary, String sequencesViewName, String columnNames)
+
+    private ResultSet selectSequences(SequenceDictionary dictionary, SimpleFilter viewFilter, String columnNames)
+    {
+        TableInfo ti = GenotypingSchema.get().getSequencesTable();
+
+        return new TableSelector(ti, ti.getColumns(columnNames), viewFilter, new Sort("RowId")).getResultSet();
+    }
+
+
+    // Filter that selects the dictionary's sequences in the specified view
+    private SimpleFilter getViewFilter(Container c, User user, SequenceDictionary dictionary, @Nullable String sequencesViewName)
     {
         // First, make sure that dictionary exists in this container
         SimpleFilter filter = SimpleFilter.createContainerFilter(c);
@@ -196,9 +542,8 @@ private ResultSet selectSequences(Container c, User user, SequenceDictionary dic
         QueryHelper qHelper = new QueryHelper(c, user, gs.getSchemaName(), gs.getSequencesTable().getName(), sequencesViewName);
         SimpleFilter viewFilter = qHelper.getViewFilter();
         viewFilter.addCondition(FieldKey.fromParts("Dictionary"), dictionary.getRowId());
-        TableInfo ti = GenotypingSchema.get().getSequencesTable();
 
-        return new TableSelector(ti, ti.getColumns(columnNames), viewFilter, new Sort("RowId")).getResultSet();
+        return viewFilter;
     }
 
 
@@ -210,40 +555,26 @@ public SequenceDictionary getSequenceDictionary(Container c, int id)
 
     public long getCurrentSequenceCount(Container c, User user)
     {
-        GenotypingSchema gs = GenotypingSchema.get();
-        TableInfo sequences = gs.getSequencesTable();
-
-        SequenceDictionary dictionary = getCurrentDictionary(c, user, false);
+        Integer dictionaryId = getCurrentDictionaryId(c, user, false);
 
-        if (null == dictionary)
+        if (null == dictionaryId)
             return 0;
 
-        SimpleFilter filter = new SimpleFilter(FieldKey.fromParts("Dictionary"), dictionary.getRowId());
-
-        return new TableSelector(sequences, filter, null).getRowCount();
+        return GenotypingManager.get().count(GenotypingSchema.get().getSequencesTable(), new SQLFragment("Dictionary = ?", dictionaryId));
     }
 
 
-    public int getDictionaryCount(Container c)
+    public long getDictionaryCount(Container c)
     {
-        SimpleFilter filter = SimpleFilter.createContainerFilter(c);
-
-        return (int)new TableSelector(GenotypingSchema.get().getDictionariesTable(), filter, null).getRowCount();
+        return GenotypingManager.get().count(GenotypingSchema.get().getDictionariesTable(), new SQLFragment("Container = ?", c));
     }
 
 
     public long getSequenceCount(Container c)
     {
         GenotypingSchema gs = GenotypingSchema.get();
-        TableInfo sequences = gs.getSequencesTable();
-
-        SQLFragment sql = new SQLFragment("SELECT s.RowId FROM ");
-        sql.append(gs.getSequencesTable(), "s");
-        sql.append(" INNER JOIN ");
-        sql.append(gs.getDictionariesTable(), "d");
-        sql.append(" ON s.Dictionary = d.RowId WHERE Container = ?");
-        sql.add(c);
+        SQLFragment where = new SQLFragment("Dictionary IN (SELECT RowId FROM " + gs.getDictionariesTable() + " WHERE Container = ?)", c);
 
-        return new SqlSelector(sequences.getSchema(), sql).getRowCount();
+        return GenotypingManager.get().count(gs.getSequencesTable(), where);
     }
 }
@@ -58,6 +58,10 @@
             dictionary of reference sequences to use for future genotyping analyses. Existing analysis runs will continue to
             link to the sequences used at the time of their analysis.
         </p>
+        <p>
+            <input type="checkbox" name="dryRun" value="true" id="dryRun"><label for="dryRun">Dry run: read and convert the source sequences and
+            report the load rate, without creating a new dictionary</label>
+        </p>
         <%= button("Load Sequences").submit(true) %><%=generateReturnUrlFormField(form)%>
     </td></tr></table>
 </form>
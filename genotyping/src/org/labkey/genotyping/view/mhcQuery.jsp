@@ -35,26 +35,30 @@ SELECT  reads.sampleid,
         CAST(SUM(neg_reads) AS INT) AS neg_reads,
         CAST(SUM(pos_ext_reads) AS INT) AS pos_ext_reads,
         CAST(SUM(neg_ext_reads) AS INT) AS neg_ext_reads,
-        <%=dialect.getGroupConcat(new SQLFragment("rowid"), true, false).getSQL()%> AS ReadIds
+        <%=ctx.arrays ? "array_agg(DISTINCT rowid)" : dialect.getGroupConcat(new SQLFragment("rowid"), true, false).getSQL()%> AS ReadIds
     FROM <%=ctx.reads.getSelectName()%> reads
     INNER JOIN
     (
         SELECT sampleid, COUNT(*) AS total_reads
         FROM <%=ctx.reads.getSelectName()%> reads
-        WHERE reads.Run = <%=ctx.run%>
+        WHERE reads.Run = <%=ctx.run%><%=null != ctx.sampleId ? " AND reads.sampleid = " + ctx.sampleId : ""%>
         GROUP BY sampleid
     ) read_count ON read_count.sampleid = reads.sampleid
     INNER JOIN
     (
-        SELECT read_name, <%=dialect.getGroupConcat(new SQLFragment("match"), false, true).getSQL()%> AS Alleles, AVG(length) AS Avg_Length,
+        SELECT read_name, <%=ctx.arrays ? "array_agg(match ORDER BY match)" : dialect.getGroupConcat(new SQLFragment("match"), false, true).getSQL()%> AS Alleles, AVG(length) AS Avg_Length,
             CASE WHEN direction = '+' THEN 1 ELSE 0 END AS pos_reads,
             CASE WHEN direction = '-' THEN 1 ELSE 0 END AS neg_reads,
             CASE WHEN direction = '+ext' THEN 1 ELSE 0 END AS pos_ext_reads,
             CASE WHEN direction = '-ext' THEN 1 ELSE 0 END AS neg_ext_reads
-        FROM <%=ctx.matches.getSelectName()%>
+        FROM <%=ctx.matches.getSelectName()%><%
+    // Aggregate only this sample's reads, so per-sample queries don't each group the entire matches table
+    if (null != ctx.sampleId) { %>
+        WHERE read_name IN (SELECT name FROM <%=ctx.reads.getSelectName()%> WHERE Run = <%=ctx.run%> AND sampleid = <%=ctx.sampleId%>)<%
+    } %>
         GROUP BY read_name, direction
     ) matches ON matches.read_name = reads.name
-WHERE reads.Run = <%=ctx.run%>
+WHERE reads.Run = <%=ctx.run%><%=null != ctx.sampleId ? " AND reads.sampleid = " + ctx.sampleId : ""%>
 GROUP BY reads.sampleid, alleles, total_reads
 HAVING COUNT(*) > 1
 ORDER BY reads.sampleid, alleles
\ No newline at end of file
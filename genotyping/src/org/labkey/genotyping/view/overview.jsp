@@ -46,8 +46,8 @@
     runMetadataURL.addParameter("query.queryName", GenotypingQuerySchema.TableType.RunMetadata.toString());
 
     String containerType = c.isProject() ? "Project" : "Folder";
-    int runCount = GenotypingManager.get().getRunCount(c);
-    int analysisCount = GenotypingManager.get().getAnalysisCount(c, null);
+    long runCount = GenotypingManager.get().getRunCount(c);
+    long analysisCount = GenotypingManager.get().getAnalysisCount(c, null);
     long sequencesCount = SequenceManager.get().getCurrentSequenceCount(c, user);
 %>
 <table>
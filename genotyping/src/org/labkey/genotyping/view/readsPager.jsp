@@ -0,0 +1,32 @@
+<%
+/*
+ * Copyright (c) 2026 LabKey Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+%>
+<%@ page import="org.labkey.api.util.Formats" %>
+<%@ page import="org.labkey.genotyping.GenotypingController.ReadsPagerBean" %>
+<%@ page extends="org.labkey.api.jsp.JspBase" %>
+<%
+    ReadsPagerBean bean = (ReadsPagerBean)getModelBean();
+    Long count = bean.getEstimatedCount();
+%>
+<table>
+    <tr>
+        <td><%=h(null != count ? Formats.commaf0.format(count) + " read" + (1 == count ? "" : "s") : "")%>&nbsp;&nbsp;</td>
+        <td><% if (null != bean.getFirstURL()) { out.print(link("First", bean.getFirstURL())); } %></td>
+        <td><% if (null != bean.getPreviousURL()) { out.print(link("Previous", bean.getPreviousURL())); } %></td>
+        <td><% if (null != bean.getNextURL()) { out.print(link("Next", bean.getNextURL())); } %></td>
+    </tr>
+</table>